@@ -1,6 +1,22 @@
 package com.badbob.app.getaclue;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.app.PendingIntent;
 import android.app.PendingIntent.CanceledException;
@@ -8,6 +24,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -20,41 +37,234 @@ public class BillingHelper {
 	
 	private static final String TAG = "BillingHelper";
 	
-	private static IMarketBillingService mService;
-	private static Context mContext;
-	private static Handler mCompletedHandler;
+	// The async requests are all funneled through one thread so the billing
+	// service sees them in the order they were made. The queue is bounded so
+	// a stuck binder can't pile up an unlimited number of requests behind it.
+	private static final int REQUEST_QUEUE_CAPACITY = 16;
+	private static final long REQUEST_THREAD_KEEP_ALIVE_SECS = 30;
 	
-	protected static VerifiedPurchase latestPurchase;
-	protected static BillingConstants.ResponseCode responseCode = ResponseCode.RESULT_OK;
+	// Confirmations are held for a short window so a burst of purchase
+	// notifications (restores, token packs) goes out as one
+	// CONFIRM_NOTIFICATIONS request instead of one per notification.
+	private static final long CONFIRM_BATCH_WINDOW_MS = 500;
+	private static final int CONFIRM_BATCH_MAX_IDS = 25;
+	
+	// How long stopService() waits for the purchase pipeline to drain, and
+	// then for the last confirmations to go out, before the service goes
+	private static final long STOP_DRAIN_TIMEOUT_MS = 10 * 1000;
+	
+	// How long a CHECK_BILLING_SUPPORTED result is trusted before asking again
+	private static final long BILLING_SUPPORTED_TTL_MS = 5 * 60 * 1000;
+	
+	private static final int API_VERSION = 1;
+	
+	// How many REQUEST_ID results are remembered for getRequestResult()
+	private static final int MAX_REQUEST_RESULTS = 64;
+	
+	// The service, context, handler and request thread all live in the
+	// session. Read it once per call and use that snapshot throughout.
+	private static final AtomicReference<BillingSession> mSession = new AtomicReference<BillingSession>( BillingSession.EMPTY );
+	
+	private static volatile PurchaseVerifier mVerifier = null;
+	
+	private static final Handler mMainHandler = new Handler( Looper.getMainLooper() );
+	
+	private static final AtomicReference<PurchaseResult> mLatestResult = new AtomicReference<PurchaseResult>( PurchaseResult.NONE );
+	private static final ConcurrentHashMap<Long, ResponseCode> mRequestResults = new ConcurrentHashMap<Long, ResponseCode>();
+	private static final ConcurrentLinkedQueue<Long> mRequestResultOrder = new ConcurrentLinkedQueue<Long>();
+	
+	private static volatile Boolean mBillingSupported = null;
+	private static volatile long mBillingSupportedTime = 0;
+	private static final AtomicBoolean mBillingSupportedRefreshing = new AtomicBoolean( false );
+	
+	private static final ConcurrentLinkedQueue<String> mPendingConfirms = new ConcurrentLinkedQueue<String>();
+	private static final AtomicInteger mPendingConfirmCount = new AtomicInteger( 0 );
+	private static final Runnable mFlushConfirmsRunnable = new Runnable() {
+		@Override
+		public void run() {
+			flushConfirmations();
+		}
+	};
+	
+	// Kept in step with mLatestResult for the code that reads these directly.
+	// Prefer getLatestResult() which can't be seen half updated.
+	protected static volatile VerifiedPurchase latestPurchase;
+	protected static volatile ArrayList<VerifiedPurchase> latestPurchases = new ArrayList<VerifiedPurchase>();
+	protected static volatile BillingConstants.ResponseCode responseCode = ResponseCode.RESULT_OK;
+	
+	/**
+	 * The outcome of the most recent PURCHASE_STATE_CHANGED. Never changes
+	 * once published.
+	 */
+	protected static class PurchaseResult {
+		static final PurchaseResult NONE = new PurchaseResult( new ArrayList<VerifiedPurchase>(), ResponseCode.RESULT_OK );
+		
+		public final List<VerifiedPurchase> purchases;
+		public final ResponseCode responseCode;
+		
+		PurchaseResult( ArrayList<VerifiedPurchase> purchases, ResponseCode responseCode ) {
+			// Copied, the list itself is also handed out as latestPurchases
+			// and msg.obj where anyone can change it
+			this.purchases = Collections.unmodifiableList( new ArrayList<VerifiedPurchase>( purchases ) );
+			this.responseCode = responseCode;
+		}
+	}
+	
+	/**
+	 * The parsed synchronous response to a billing request.
+	 */
+	protected static class BillingResponse {
+		public final String method;
+		public final ResponseCode responseCode;
+		public final Long requestId;
+		
+		BillingResponse( String method, ResponseCode responseCode, Long requestId ) {
+			this.method = method;
+			this.responseCode = responseCode;
+			this.requestId = requestId;
+		}
+		
+		public boolean isOk() {
+			return ResponseCode.RESULT_OK.equals( responseCode );
+		}
+	}
+	
+	/**
+	 * Receives the result of an async billing request. Always called on the
+	 * main thread.
+	 */
+	protected interface BillingCallback {
+		public void onBillingResponse( BillingResponse response );
+	}
 	
 	protected static void instantiateHelper( Context context, IMarketBillingService service ) {
-		mService = service;
-		mContext = context;
+		instantiateHelper( context, service != null ? new MarketBillingTransport( service ) : null );
+	}
+	
+	/**
+	 * Lets something other than the market service carry the requests, e.g.
+	 * FakeBillingTransport for load testing.
+	 * 
+	 * @param context
+	 * @param transport
+	 */
+	protected static void instantiateHelper( Context context, BillingTransport transport ) {
+		invalidateBillingSupported();
+		installVerifier();
+		
+		ThreadPoolExecutor executor = newRequestExecutor();
+		PurchasePipeline pipeline = new PurchasePipeline();
+		BillingSession previous;
+		do {
+			previous = mSession.get();
+		} while( !mSession.compareAndSet( previous, new BillingSession( transport, context, previous.completedHandler, executor, pipeline ) ) );
+		
+		previous.shutdown();
 	}
 	
 	protected static void setCompletedHandler( Handler handler ) {
-		mCompletedHandler = handler;
+		BillingSession session;
+		do {
+			session = mSession.get();
+		} while( !mSession.compareAndSet( session, session.withCompletedHandler( handler ) ) );
+	}
+	
+	/**
+	 * @return The purchases and response code from the most recent
+	 *         PURCHASE_STATE_CHANGED, all from the same broadcast
+	 */
+	protected static PurchaseResult getLatestResult() {
+		return mLatestResult.get();
+	}
+	
+	/**
+	 * Looks up what is known about a request by its REQUEST_ID: the
+	 * synchronous response code, replaced by the code from the RESPONSE_CODE
+	 * broadcast once that arrives. Only the last MAX_REQUEST_RESULTS requests
+	 * are remembered.
+	 * 
+	 * @param requestId
+	 * @return The response code or null if the request is unknown
+	 */
+	protected static ResponseCode getRequestResult( long requestId ) {
+		return mRequestResults.get( requestId );
+	}
+	
+	private static void recordRequestResult( Long requestId, ResponseCode code ) {
+		if( requestId == null || code == null ) {
+			return;
+		}
+		if( mRequestResults.put( requestId, code ) == null ) {
+			mRequestResultOrder.offer( requestId );
+			while( mRequestResultOrder.size() > MAX_REQUEST_RESULTS ) {
+				Long oldest = mRequestResultOrder.poll();
+				if( oldest != null ) {
+					mRequestResults.remove( oldest );
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Sets up the PurchaseVerifier with the same key BillingSecurity checks
+	 * against, so verifyPayload() doesn't decode it for every broadcast. Only
+	 * done once per process.
+	 */
+	private static void installVerifier() {
+		if( mVerifier != null ) {
+			return;
+		}
+		try {
+			mVerifier = new PurchaseVerifier( BillingSecurity.BASE64_PUBLIC_KEY );
+		}
+		catch( IllegalArgumentException e ) {
+			Log.e( TAG, "Bad public key, verifying with BillingSecurity" );
+		}
+	}
+	
+	/**
+	 * Swaps in a different verifier, e.g. one for FakeBillingTransport's key
+	 * in BillingLoadHarness.
+	 * 
+	 * @return The one it replaced, to put back afterwards
+	 */
+	static PurchaseVerifier setVerifier( PurchaseVerifier verifier ) {
+		PurchaseVerifier previous = mVerifier;
+		mVerifier = verifier;
+		return previous;
 	}
 	
+	/**
+	 * Returns the cached result if it is younger than BILLING_SUPPORTED_TTL_MS,
+	 * otherwise asks the billing service and caches the answer.
+	 */
 	protected static boolean isBillingSupported() {
-		if( amIDead() ) {
+		BillingSession session = mSession.get();
+		if( amIDead( session ) ) {
 			return false;
 		}
-		Bundle request = makeRequestBundle( "CHECK_BILLING_SUPPORTED" );
-		if( mService != null ) {
+		Boolean cached = getCachedBillingSupported();
+		if( cached != null ) {
+			return cached.booleanValue();
+		}
+		Bundle request = makeRequestBundle( session, "CHECK_BILLING_SUPPORTED" );
+		if( session.transport != null ) {
 			try {
-				Bundle response = mService.sendBillingRequest( request );
+				Bundle response = session.transport.sendBillingRequest( request );
 				ResponseCode code = ResponseCode.valueOf( (Integer)response.get( "RESPONSE_CODE" ) );
 				Log.i( TAG, "isBillingSupported response was: " + code.toString() );
 				if( ResponseCode.RESULT_OK.equals( code ) ) {
+					setCachedBillingSupported( true );
 					return true;
 				}
 				else {
+					setCachedBillingSupported( false );
 					return false;
 				}
 			}
 			catch( RemoteException e ) {
 				Log.e( TAG, "isBillingSupported response was: RemoteException", e );
+				invalidateBillingSupported();
 				return false;
 			}
 		}
@@ -77,14 +287,15 @@ public class BillingHelper {
 	 * @param itemId
 	 */
 	protected static void requestPurchase( Context activityContext, String itemId ) {
-		if( amIDead() ) {
+		BillingSession session = mSession.get();
+		if( amIDead( session ) ) {
 			return;
 		}
 		Log.i( TAG, "requestPurchase()" );
-		Bundle request = makeRequestBundle( "REQUEST_PURCHASE" );
+		Bundle request = makeRequestBundle( session, "REQUEST_PURCHASE" );
 		request.putString( "ITEM_ID", itemId );
 		try {
-			Bundle response = mService.sendBillingRequest( request );
+			Bundle response = session.transport.sendBillingRequest( request );
 			
 			// The RESPONSE_CODE key provides you with the status of the request
 			Integer responseCodeIndex = (Integer)response.get( "RESPONSE_CODE" );
@@ -96,13 +307,16 @@ public class BillingHelper {
 			Long requestIndentifier = (Long)response.get( "REQUEST_ID" );
 			Log.i( TAG, "current request is:" + requestIndentifier );
 			BillingConstants.ResponseCode responseCode = BillingConstants.ResponseCode.valueOf( responseCodeIndex );
+			recordRequestResult( requestIndentifier, responseCode );
 			Log.i( TAG, "REQUEST_PURCHASE Sync Response code: " + responseCode.toString() );
 			
-			startBuyPageActivity( pendingIntent, new Intent(), activityContext );
+			if( pendingIntent != null ) {
+				startBuyPageActivity( pendingIntent, new Intent(), activityContext );
+			}
 		}
 		catch( RemoteException e ) {
 			Log.e( TAG, "Failed, internet error maybe", e );
-			Log.e( TAG, "Billing supported: " + isBillingSupported() );
+			onServiceError();
 		}
 	}
 	
@@ -120,11 +334,12 @@ public class BillingHelper {
 	 * @param notifyIds
 	 */
 	protected static void getPurchaseInformation( String[] notifyIds ) {
-		if( amIDead() ) {
+		BillingSession session = mSession.get();
+		if( amIDead( session ) ) {
 			return;
 		}
 		Log.i( TAG, "getPurchaseInformation()" );
-		Bundle request = makeRequestBundle( "GET_PURCHASE_INFORMATION" );
+		Bundle request = makeRequestBundle( session, "GET_PURCHASE_INFORMATION" );
 		// The REQUEST_NONCE key contains a cryptographically secure nonce
 		// (number used once) that you must generate.
 		// The Android Market application returns this nonce with the
@@ -135,7 +350,7 @@ public class BillingHelper {
 		// received in the IN_APP_NOTIFY broadcast intent.
 		request.putStringArray( "NOTIFY_IDS", notifyIds );
 		try {
-			Bundle response = mService.sendBillingRequest( request );
+			Bundle response = session.transport.sendBillingRequest( request );
 			
 			// The REQUEST_ID key provides you with a unique request identifier
 			// for the request
@@ -144,12 +359,13 @@ public class BillingHelper {
 			// The RESPONSE_CODE key provides you with the status of the request
 			Integer responseCodeIndex = (Integer)response.get( "RESPONSE_CODE" );
 			BillingConstants.ResponseCode responseCode = BillingConstants.ResponseCode.valueOf( responseCodeIndex );
+			recordRequestResult( requestIndentifier, responseCode );
 			Log.i( TAG, "GET_PURCHASE_INFORMATION Sync Response code: " + responseCode.toString() );
 			
 		}
 		catch( RemoteException e ) {
 			Log.e( TAG, "Failed, internet error maybe", e );
-			Log.e( TAG, "Billing supported: " + isBillingSupported() );
+			onServiceError();
 		}
 	}
 	
@@ -171,14 +387,15 @@ public class BillingHelper {
 	 * @param notifyIds
 	 */
 	protected static void confirmTransaction( String[] notifyIds ) {
-		if( amIDead() ) {
+		BillingSession session = mSession.get();
+		if( amIDead( session ) ) {
 			return;
 		}
 		Log.i( TAG, "confirmTransaction()" );
-		Bundle request = makeRequestBundle( "CONFIRM_NOTIFICATIONS" );
+		Bundle request = makeRequestBundle( session, "CONFIRM_NOTIFICATIONS" );
 		request.putStringArray( "NOTIFY_IDS", notifyIds );
 		try {
-			Bundle response = mService.sendBillingRequest( request );
+			Bundle response = session.transport.sendBillingRequest( request );
 			
 			// The REQUEST_ID key provides you with a unique request identifier
 			// for the request
@@ -188,12 +405,13 @@ public class BillingHelper {
 			// The RESPONSE_CODE key provides you with the status of the request
 			Integer responseCodeIndex = (Integer)response.get( "RESPONSE_CODE" );
 			BillingConstants.ResponseCode responseCode = BillingConstants.ResponseCode.valueOf( responseCodeIndex );
+			recordRequestResult( requestIndentifier, responseCode );
 			
 			Log.i( TAG, "CONFIRM_NOTIFICATIONS Sync Response code: " + responseCode.toString() );
 		}
 		catch( RemoteException e ) {
 			Log.e( TAG, "Failed, internet error maybe", e );
-			Log.e( TAG, "Billing supported: " + isBillingSupported() );
+			onServiceError();
 		}
 	}
 	
@@ -217,16 +435,17 @@ public class BillingHelper {
 	 * @param nonce
 	 */
 	protected static void restoreTransactionInformation( Long nonce ) {
-		if( amIDead() ) {
+		BillingSession session = mSession.get();
+		if( amIDead( session ) ) {
 			return;
 		}
 		Log.i( TAG, "confirmTransaction()" );
-		Bundle request = makeRequestBundle( "RESTORE_TRANSACTIONS" );
+		Bundle request = makeRequestBundle( session, "RESTORE_TRANSACTIONS" );
 		// The REQUEST_NONCE key contains a cryptographically secure nonce
 		// (number used once) that you must generate
 		request.putLong( "NONCE", nonce );
 		try {
-			Bundle response = mService.sendBillingRequest( request );
+			Bundle response = session.transport.sendBillingRequest( request );
 			
 			// The REQUEST_ID key provides you with a unique request identifier
 			// for the request
@@ -236,16 +455,328 @@ public class BillingHelper {
 			// The RESPONSE_CODE key provides you with the status of the request
 			Integer responseCodeIndex = (Integer)response.get( "RESPONSE_CODE" );
 			BillingConstants.ResponseCode responseCode = BillingConstants.ResponseCode.valueOf( responseCodeIndex );
+			recordRequestResult( requestIndentifier, responseCode );
 			Log.i( TAG, "RESTORE_TRANSACTIONS Sync Response code: " + responseCode.toString() );
 		}
 		catch( RemoteException e ) {
 			Log.e( TAG, "Failed, internet error maybe", e );
-			Log.e( TAG, "Billing supported: " + isBillingSupported() );
+			onServiceError();
+		}
+	}
+	
+	protected static Future<BillingResponse> isBillingSupportedAsync( BillingCallback callback ) {
+		BillingSession session = mSession.get();
+		if( amIDead( session ) ) {
+			return submitRequest( session, "CHECK_BILLING_SUPPORTED", null, callback );
+		}
+		return submitRequest( session, "CHECK_BILLING_SUPPORTED", makeRequestBundle( session, "CHECK_BILLING_SUPPORTED" ), callback, new ResponseHandler() {
+			@Override
+			public void onResponse( Bundle response ) {
+				ResponseCode code = ResponseCode.valueOf( (Integer)response.get( "RESPONSE_CODE" ) );
+				setCachedBillingSupported( ResponseCode.RESULT_OK.equals( code ) );
+			}
+		} );
+	}
+	
+	/**
+	 * Returns the last CHECK_BILLING_SUPPORTED result or null if there isn't
+	 * one or it has expired.
+	 */
+	protected static Boolean getCachedBillingSupported() {
+		Boolean supported = mBillingSupported;
+		if( supported != null && System.currentTimeMillis() - mBillingSupportedTime < BILLING_SUPPORTED_TTL_MS ) {
+			return supported;
+		}
+		return null;
+	}
+	
+	private static void setCachedBillingSupported( boolean supported ) {
+		mBillingSupportedTime = System.currentTimeMillis();
+		mBillingSupported = Boolean.valueOf( supported );
+	}
+	
+	protected static void invalidateBillingSupported() {
+		mBillingSupported = null;
+		mBillingSupportedTime = 0;
+	}
+	
+	/**
+	 * Re-checks billing support in the background unless a check is already
+	 * on its way.
+	 */
+	protected static void refreshBillingSupported() {
+		if( mBillingSupportedRefreshing.compareAndSet( false, true ) ) {
+			isBillingSupportedAsync( new BillingCallback() {
+				@Override
+				public void onBillingResponse( BillingResponse response ) {
+					mBillingSupportedRefreshing.set( false );
+					Log.i( TAG, "Billing supported: " + response.isOk() );
+				}
+			} );
+		}
+	}
+	
+	/**
+	 * A request failed at the binder level. Whatever we knew about billing
+	 * support may be stale now so drop it and check again off the caller's
+	 * thread.
+	 */
+	private static void onServiceError() {
+		invalidateBillingSupported();
+		refreshBillingSupported();
+	}
+	
+	/**
+	 * Same as requestPurchase() but the request is sent on the billing
+	 * request thread. The buy page is launched from there once the service
+	 * hands back the PURCHASE_INTENT.
+	 * 
+	 * @param activityContext
+	 * @param itemId
+	 * @param callback May be null
+	 */
+	protected static Future<BillingResponse> requestPurchaseAsync( final Context activityContext, String itemId, BillingCallback callback ) {
+		BillingSession session = mSession.get();
+		if( amIDead( session ) ) {
+			return submitRequest( session, "REQUEST_PURCHASE", null, callback );
+		}
+		Bundle request = makeRequestBundle( session, "REQUEST_PURCHASE" );
+		request.putString( "ITEM_ID", itemId );
+		return submitRequest( session, "REQUEST_PURCHASE", request, callback, new ResponseHandler() {
+			@Override
+			public void onResponse( Bundle response ) {
+				PendingIntent pendingIntent = (PendingIntent)response.get( "PURCHASE_INTENT" );
+				if( pendingIntent != null ) {
+					startBuyPageActivity( pendingIntent, new Intent(), activityContext );
+				}
+			}
+		} );
+	}
+	
+	protected static Future<BillingResponse> getPurchaseInformationAsync( String[] notifyIds, BillingCallback callback ) {
+		BillingSession session = mSession.get();
+		if( amIDead( session ) ) {
+			return submitRequest( session, "GET_PURCHASE_INFORMATION", null, callback );
+		}
+		Bundle request = makeRequestBundle( session, "GET_PURCHASE_INFORMATION" );
+		request.putLong( "NONCE", BillingSecurity.generateNonce() );
+		request.putStringArray( "NOTIFY_IDS", notifyIds );
+		return submitRequest( session, "GET_PURCHASE_INFORMATION", request, callback );
+	}
+	
+	protected static Future<BillingResponse> confirmTransactionAsync( String[] notifyIds, BillingCallback callback ) {
+		return confirmTransactionAsync( mSession.get(), notifyIds, callback );
+	}
+	
+	private static Future<BillingResponse> confirmTransactionAsync( BillingSession session, String[] notifyIds, BillingCallback callback ) {
+		if( amIDead( session ) ) {
+			return submitRequest( session, "CONFIRM_NOTIFICATIONS", null, callback );
+		}
+		Bundle request = makeRequestBundle( session, "CONFIRM_NOTIFICATIONS" );
+		request.putStringArray( "NOTIFY_IDS", notifyIds );
+		return submitRequest( session, "CONFIRM_NOTIFICATIONS", request, callback );
+	}
+	
+	protected static Future<BillingResponse> restoreTransactionInformationAsync( Long nonce, BillingCallback callback ) {
+		BillingSession session = mSession.get();
+		if( amIDead( session ) ) {
+			return submitRequest( session, "RESTORE_TRANSACTIONS", null, callback );
+		}
+		Bundle request = makeRequestBundle( session, "RESTORE_TRANSACTIONS" );
+		request.putLong( "NONCE", nonce );
+		return submitRequest( session, "RESTORE_TRANSACTIONS", request, callback );
+	}
+	
+	/**
+	 * Adds the notification id to the pending confirmations. They are sent
+	 * together once CONFIRM_BATCH_WINDOW_MS has passed since the first one
+	 * was queued or as soon as CONFIRM_BATCH_MAX_IDS have been collected.
+	 * 
+	 * @param notifyId
+	 */
+	protected static void queueConfirmation( String notifyId ) {
+		// A duplicate slipping past this check is harmless, the market just
+		// sees the id confirmed twice
+		if( mPendingConfirms.contains( notifyId ) ) {
+			return;
+		}
+		mPendingConfirms.offer( notifyId );
+		int pending = mPendingConfirmCount.incrementAndGet();
+		if( pending >= CONFIRM_BATCH_MAX_IDS ) {
+			flushConfirmations();
+		}
+		else if( pending == 1 ) {
+			mMainHandler.postDelayed( mFlushConfirmsRunnable, CONFIRM_BATCH_WINDOW_MS );
+		}
+	}
+	
+	/**
+	 * Sends all pending confirmations as a single CONFIRM_NOTIFICATIONS
+	 * request.
+	 * 
+	 * @return The request, or null if there was nothing to confirm
+	 */
+	protected static Future<BillingResponse> flushConfirmations() {
+		return flushConfirmations( mSession.get() );
+	}
+	
+	/**
+	 * While stopService() is draining the old session there is none to send
+	 * them with, so they are left for it to flush.
+	 */
+	private static Future<BillingResponse> flushConfirmations( BillingSession session ) {
+		if( !session.isAlive() ) {
+			return null;
+		}
+		
+		mMainHandler.removeCallbacks( mFlushConfirmsRunnable );
+		ArrayList<String> notifyIds = new ArrayList<String>();
+		String notifyId;
+		while( ( notifyId = mPendingConfirms.poll() ) != null ) {
+			mPendingConfirmCount.decrementAndGet();
+			notifyIds.add( notifyId );
+		}
+		if( notifyIds.isEmpty() ) {
+			return null;
+		}
+		
+		Log.i( TAG, "Confirming " + notifyIds.size() + " notification(s)" );
+		return confirmTransactionAsync( session, notifyIds.toArray( new String[ notifyIds.size() ] ), null );
+	}
+	
+	/**
+	 * Gets a look at the raw response bundle on the request thread before the
+	 * parsed response is posted back to the caller.
+	 */
+	private interface ResponseHandler {
+		public void onResponse( Bundle response );
+	}
+	
+	private static Future<BillingResponse> submitRequest( BillingSession session, String method, Bundle request, BillingCallback callback ) {
+		return submitRequest( session, method, request, callback, null );
+	}
+	
+	/**
+	 * Queues the request on the session's request thread. A null request
+	 * means the helper is not instantiated and the callback just gets
+	 * RESULT_SERVICE_UNAVAILABLE. If the queue is full the callback gets
+	 * RESULT_ERROR right away rather than blocking the caller.
+	 * 
+	 * The request keeps using the session it was made with, so requests
+	 * queued just before stopService() still go out.
+	 */
+	private static Future<BillingResponse> submitRequest( BillingSession session, final String method, final Bundle request, final BillingCallback callback, final ResponseHandler handler ) {
+		final BillingTransport service = session.transport;
+		Callable<BillingResponse> task = new Callable<BillingResponse>() {
+			@Override
+			public BillingResponse call() throws Exception {
+				BillingResponse result;
+				if( request == null || service == null ) {
+					result = new BillingResponse( method, ResponseCode.RESULT_SERVICE_UNAVAILABLE, null );
+				}
+				else {
+					try {
+						Bundle response = service.sendBillingRequest( request );
+						result = parseResponse( method, response );
+						recordRequestResult( result.requestId, result.responseCode );
+						if( handler != null ) {
+							handler.onResponse( response );
+						}
+					}
+					catch( RemoteException e ) {
+						Log.e( TAG, method + " failed, internet error maybe", e );
+						invalidateBillingSupported();
+						result = new BillingResponse( method, ResponseCode.RESULT_SERVICE_UNAVAILABLE, null );
+					}
+				}
+				postResponse( callback, result );
+				return result;
+			}
+		};
+		
+		try {
+			if( session.requestExecutor == null ) {
+				throw new RejectedExecutionException();
+			}
+			return session.requestExecutor.submit( task );
+		}
+		catch( RejectedExecutionException e ) {
+			Log.e( TAG, method + " rejected, billing request queue is full or shut down" );
+			BillingResponse result = new BillingResponse( method, ResponseCode.RESULT_ERROR, null );
+			postResponse( callback, result );
+			return new CompletedFuture( result );
+		}
+	}
+	
+	private static BillingResponse parseResponse( String method, Bundle response ) {
+		// The RESPONSE_CODE key provides you with the status of the request
+		Integer responseCodeIndex = (Integer)response.get( "RESPONSE_CODE" );
+		// The REQUEST_ID key provides you with a unique request identifier
+		// for the request. CHECK_BILLING_SUPPORTED doesn't have one.
+		Long requestIdentifier = (Long)response.get( "REQUEST_ID" );
+		ResponseCode code = ResponseCode.valueOf( responseCodeIndex );
+		Log.i( TAG, method + " Sync Response code: " + code.toString() + " request: " + requestIdentifier );
+		return new BillingResponse( method, code, requestIdentifier );
+	}
+	
+	private static void postResponse( final BillingCallback callback, final BillingResponse response ) {
+		if( callback != null ) {
+			mMainHandler.post( new Runnable() {
+				@Override
+				public void run() {
+					callback.onBillingResponse( response );
+				}
+			} );
+		}
+	}
+	
+	private static ThreadPoolExecutor newRequestExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor( 1, 1, REQUEST_THREAD_KEEP_ALIVE_SECS, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>( REQUEST_QUEUE_CAPACITY ), new ThreadFactory() {
+					@Override
+					public Thread newThread( Runnable r ) {
+						Thread thread = new Thread( r, "BillingRequest" );
+						thread.setPriority( Thread.NORM_PRIORITY - 1 );
+						return thread;
+					}
+				} );
+		executor.allowCoreThreadTimeOut( true );
+		return executor;
+	}
+	
+	/**
+	 * Future for a request that never made it onto the queue.
+	 */
+	private static class CompletedFuture implements Future<BillingResponse> {
+		private final BillingResponse result;
+		
+		CompletedFuture( BillingResponse result ) {
+			this.result = result;
+		}
+		
+		public boolean cancel( boolean mayInterruptIfRunning ) {
+			return false;
+		}
+		
+		public boolean isCancelled() {
+			return false;
+		}
+		
+		public boolean isDone() {
+			return true;
+		}
+		
+		public BillingResponse get() {
+			return result;
+		}
+		
+		public BillingResponse get( long timeout, TimeUnit unit ) {
+			return result;
 		}
 	}
 	
-	private static boolean amIDead() {
-		if( mService == null || mContext == null ) {
+	private static boolean amIDead( BillingSession session ) {
+		if( !session.isAlive() ) {
 			Log.e( TAG, "BillingHelper not fully instantiated" );
 			return true;
 		}
@@ -254,11 +785,15 @@ public class BillingHelper {
 		}
 	}
 	
-	private static Bundle makeRequestBundle( String method ) {
+	/**
+	 * A new bundle every time. The caller fills it in on its own thread and
+	 * the request thread sends it later, so there is nothing safe to share.
+	 */
+	private static Bundle makeRequestBundle( BillingSession session, String method ) {
 		Bundle request = new Bundle();
 		request.putString( "BILLING_REQUEST", method );
-		request.putInt( "API_VERSION", 1 );
-		request.putString( "PACKAGE_NAME", mContext.getPackageName() );
+		request.putInt( "API_VERSION", API_VERSION );
+		request.putString( "PACKAGE_NAME", session.context.getPackageName() );
 		return request;
 	}
 	
@@ -289,37 +824,146 @@ public class BillingHelper {
 		}
 	}
 	
+	/**
+	 * A single PURCHASE_STATE_CHANGED can carry many orders (a restore sends
+	 * every managed purchase at once) so the whole list is handled in one
+	 * pass. Every verified purchase ends up in latestPurchases, all of their
+	 * notifications are confirmed together and the completed handler
+	 * gets one message with the list as msg.obj and the count as msg.arg1.
+	 * latestPurchase is still set to the first one for older callers.
+	 * 
+	 * The work is done on the PurchasePipeline threads so this returns right
+	 * away and the completed handler is told once the confirmations are
+	 * queued. A payload that doesn't decode is logged there, it is no longer
+	 * thrown from here, but the throws clause stays for BillingService and
+	 * anything else written against it.
+	 * 
+	 * @param signedData
+	 * @param signature
+	 */
 	protected static void verifyPurchase( String signedData, String signature ) throws Base64DecoderException {
-		ArrayList<VerifiedPurchase> purchases = BillingSecurity.verifyPurchase( signedData, signature );
+		PurchasePipeline pipeline = mSession.get().purchasePipeline;
+		if( pipeline != null ) {
+			pipeline.submit( signedData, signature );
+		}
+		else {
+			PurchasePipeline.process( signedData, signature );
+		}
+	}
+	
+	/**
+	 * Pipeline stage 1. Checks the signature and parses the orders.
+	 */
+	static ArrayList<VerifiedPurchase> verifyPayload( String signedData, String signature ) throws Base64DecoderException {
+		PurchaseVerifier verifier = mVerifier;
+		if( verifier != null ) {
+			return verifier.verifyPurchase( signedData, signature );
+		}
+		else {
+			return BillingSecurity.verifyPurchase( signedData, signature );
+		}
+	}
+	
+	/**
+	 * Pipeline stage 1 for when several broadcasts are waiting. Checks them
+	 * all with the same Signature.
+	 * 
+	 * @return The purchases for each payload, in the same order, with null
+	 *         for the bad ones
+	 */
+	static ArrayList<ArrayList<VerifiedPurchase>> verifyPayloads( List<PurchaseVerifier.SignedPayload> payloads ) {
+		PurchaseVerifier verifier = mVerifier;
+		if( verifier != null ) {
+			return verifier.verifyPurchases( payloads );
+		}
+		
+		ArrayList<ArrayList<VerifiedPurchase>> results = new ArrayList<ArrayList<VerifiedPurchase>>( payloads.size() );
+		for( PurchaseVerifier.SignedPayload payload : payloads ) {
+			try {
+				results.add( BillingSecurity.verifyPurchase( payload.signedData, payload.signature ) );
+			}
+			catch( Base64DecoderException e ) {
+				Log.e( TAG, "Purchase signature could not be decoded", e );
+				results.add( null );
+			}
+		}
+		return results;
+	}
+	
+	/**
+	 * Pipeline stage 2. Makes the purchases visible to the rest of the app.
+	 */
+	static void deliverPurchases( ArrayList<VerifiedPurchase> purchases ) {
+		PurchaseResult result;
 		if( purchases != null && purchases.size() > 0 ) {
+			result = new PurchaseResult( purchases, ResponseCode.RESULT_OK );
+			latestPurchases = purchases;
 			latestPurchase = purchases.get( 0 );
-			confirmTransaction( new String[] { latestPurchase.notificationId } );
-			responseCode = ResponseCode.RESULT_OK;
 		}
 		else {
-			responseCode = ResponseCode.RESULT_DEVELOPER_ERROR;
+			result = new PurchaseResult( new ArrayList<VerifiedPurchase>(), ResponseCode.RESULT_DEVELOPER_ERROR );
+			latestPurchases = new ArrayList<VerifiedPurchase>();
 		}
-		
-		if( mCompletedHandler != null ) {
-			mCompletedHandler.sendEmptyMessage( 0 );
+		mLatestResult.set( result );
+		responseCode = result.responseCode;
+	}
+	
+	/**
+	 * Pipeline stage 3. Queues every notification for confirmation. Only done
+	 * after delivery so a crash before then means the market notifies us
+	 * again. They go out with whatever else arrives within
+	 * CONFIRM_BATCH_WINDOW_MS, so a burst of broadcasts is still one request.
+	 */
+	static void confirmPurchases( ArrayList<VerifiedPurchase> purchases ) {
+		if( purchases == null || purchases.isEmpty() ) {
+			return;
+		}
+		for( VerifiedPurchase purchase : purchases ) {
+			// Refunds and restores don't always come with a notification
+			if( purchase.notificationId != null ) {
+				queueConfirmation( purchase.notificationId );
+			}
+		}
+	}
+	
+	static void notifyPurchasesCompleted( ArrayList<VerifiedPurchase> purchases ) {
+		if( purchases == null ) {
+			purchases = new ArrayList<VerifiedPurchase>();
+		}
+		Handler handler = mSession.get().completedHandler;
+		if( handler != null ) {
+			handler.obtainMessage( 0, purchases.size(), 0, purchases ).sendToTarget();
 		}
 		else {
 			Log.e( TAG, "verifyPurchase error. Handler not instantiated. Have you called setCompletedHandler()?" );
 		}
 	}
 	
+	/**
+	 * For the RESPONSE_CODE broadcast. Remembers the code against the
+	 * request so getRequestResult() can tell concurrent requests apart.
+	 * 
+	 * @param requestId
+	 * @param responseCode
+	 */
+	protected static void otherResponse( long requestId, ResponseCode responseCode ) {
+		recordRequestResult( requestId, responseCode );
+		otherResponse( responseCode );
+	}
+	
 	protected static void otherResponse( ResponseCode responseCode ) {
 		BillingHelper.responseCode = responseCode;
 		
 		if( responseCode != ResponseCode.RESULT_OK ) {
-			if( mCompletedHandler != null ) {
-				mCompletedHandler.sendEmptyMessage( 0 );
+			Handler handler = mSession.get().completedHandler;
+			if( handler != null ) {
+				handler.sendEmptyMessage( 0 );
 				/*
 				Bundle bundle = new Bundle();
 				bundle.putInt( "responseCode", responseCode.ordinal() );
 				Message msg = new Message();
 				msg.setData( bundle );
-				mCompletedHandler.sendMessage( msg );
+				handler.sendMessage( msg );
 				*/
 			}
 			else {
@@ -328,13 +972,58 @@ public class BillingHelper {
 		}
 	}
 	
+	/**
+	 * Takes no more requests or purchases, then on a thread of its own waits
+	 * for the purchases already in the pipeline to be delivered and for their
+	 * confirmations to go out before stopping the service. Anything that
+	 * still isn't confirmed by then will be sent again by the market.
+	 */
 	public static void stopService() {
 		Log.i( TAG, "Stopping Service" );
 		
-		mContext.stopService( new Intent( mContext, BillingService.class ) );
-		mService = null;
-		mContext = null;
-		mCompletedHandler = null;
+		final BillingSession session = mSession.getAndSet( BillingSession.EMPTY );
+		invalidateBillingSupported();
+		
+		final PurchasePipeline pipeline = session.purchasePipeline;
+		if( pipeline != null ) {
+			pipeline.stop();
+		}
+		
+		new Thread( new Runnable() {
+			@Override
+			public void run() {
+				long deadline = System.currentTimeMillis() + STOP_DRAIN_TIMEOUT_MS;
+				try {
+					if( pipeline != null && !pipeline.awaitStopped( STOP_DRAIN_TIMEOUT_MS ) ) {
+						Log.w( TAG, "Purchase pipeline still busy, stopping anyway" );
+					}
+					
+					// Don't leave any confirmations behind or the market will
+					// just notify us again next time
+					// Requests already queued go out in order, so once the
+					// confirmation is done they all are
+					Future<BillingResponse> confirm = flushConfirmations( session );
+					if( confirm != null ) {
+						confirm.get( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+					}
+				}
+				catch( InterruptedException e ) {
+					Log.w( TAG, "Interrupted while stopping" );
+				}
+				catch( ExecutionException e ) {
+					Log.e( TAG, "Confirming failed while stopping", e );
+				}
+				catch( TimeoutException e ) {
+					Log.w( TAG, "Timed out confirming while stopping" );
+				}
+				finally {
+					session.shutdown();
+					if( session.context != null ) {
+						session.context.stopService( new Intent( session.context, BillingService.class ) );
+					}
+				}
+			}
+		}, "BillingStop" ).start();
 	}
 }
 
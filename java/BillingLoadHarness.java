@@ -0,0 +1,278 @@
+package com.badbob.app.getaclue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.util.Log;
+
+import com.badbob.app.getaclue.BillingConstants.ResponseCode;
+import com.badbob.app.getaclue.BillingHelper.BillingCallback;
+import com.badbob.app.getaclue.BillingHelper.BillingResponse;
+import com.badbob.app.getaclue.BillingSecurity.VerifiedPurchase;
+import com.badbob.util.Base64DecoderException;
+
+/**
+ * Drives simulated purchases through BillingHelper against a
+ * FakeBillingTransport and reports latency percentiles and throughput.
+ * 
+ * The fake's broadcasts go to BillingHelper.otherResponse() and
+ * verifyPurchase() like BillingService would pass on the market's, so each
+ * purchase runs the whole way: the request queue, the synchronous response,
+ * then the signed PURCHASE_STATE_CHANGED through PurchasePipeline's verify,
+ * deliver and confirm stages. Its latency is from the requestPurchaseAsync()
+ * call to the completed handler hearing about it. Each purchase has its own
+ * product id so it can be picked out there. Purchases that haven't finished
+ * by the timeout count with the whole time waited.
+ * 
+ * run() blocks until every purchase has completed so it must not be called
+ * on the main thread. BillingHelper posts the request callbacks to the main
+ * looper, so this needs a running one and can't go on a bare JVM; run it
+ * from an instrumentation test or a debug screen. BillingHelper is left
+ * pointing at the fake afterwards, with the fake's completed handler.
+ */
+public class BillingLoadHarness {
+	
+	private static final String TAG = "BillingLoadHarness";
+	
+	private static final String PRODUCT_PREFIX = "load.test.";
+	
+	private static final long TIMEOUT_SECS = 300;
+	
+	public static class Report {
+		public int purchases;
+		public int failures;
+		public int timeouts;
+		public int delivered;
+		public int confirmed;
+		public int responseCodeBroadcasts;
+		public int purchaseBroadcasts;
+		public long elapsedMs;
+		public double p50Ms;
+		public double p99Ms;
+		public double maxMs;
+		public double purchasesPerSec;
+		
+		@Override
+		public String toString() {
+			return purchases + " purchases in " + elapsedMs + "ms (" + String.format( "%.1f", purchasesPerSec ) + "/sec), "
+					+ "p50 " + String.format( "%.2f", p50Ms ) + "ms, p99 " + String.format( "%.2f", p99Ms ) + "ms, "
+					+ "max " + String.format( "%.2f", maxMs ) + "ms, " + failures + " failed, " + timeouts + " timed out, "
+					+ delivered + " delivered, " + confirmed + " confirmed, "
+					+ responseCodeBroadcasts + " RESPONSE_CODE, " + purchaseBroadcasts + " PURCHASE_STATE_CHANGED";
+		}
+	}
+	
+	/**
+	 * Keeps track of which purchases are done and how long they took.
+	 */
+	private static class Purchases {
+		final long[] starts;
+		final long[] latencies;
+		final boolean[] finished;
+		final CountDownLatch done;
+		final Semaphore inFlight;
+		int failures = 0;
+		int delivered = 0;
+		
+		Purchases( int count, int maxInFlight, long runStart ) {
+			// Until they are started, so any that never were count from the
+			// start of the run
+			starts = new long[ count ];
+			Arrays.fill( starts, runStart );
+			latencies = new long[ count ];
+			finished = new boolean[ count ];
+			done = new CountDownLatch( count );
+			inFlight = new Semaphore( maxInFlight );
+		}
+		
+		synchronized void start( int index ) {
+			starts[ index ] = System.nanoTime();
+		}
+		
+		synchronized void finish( int index, boolean failed ) {
+			if( finished[ index ] ) {
+				return;
+			}
+			finished[ index ] = true;
+			latencies[ index ] = System.nanoTime() - starts[ index ];
+			if( failed ) {
+				failures++;
+			}
+			else {
+				delivered++;
+			}
+			inFlight.release();
+			done.countDown();
+		}
+		
+		/**
+		 * @return How many had to be counted with the whole time waited
+		 */
+		synchronized int finishTimedOut() {
+			long now = System.nanoTime();
+			int timeouts = 0;
+			for( int i = 0; i < finished.length; i++ ) {
+				if( !finished[ i ] ) {
+					finished[ i ] = true;
+					latencies[ i ] = now - starts[ i ];
+					timeouts++;
+				}
+			}
+			return timeouts;
+		}
+	}
+	
+	/**
+	 * @param context Used to instantiate BillingHelper with the fake
+	 * @param transport Already configured with latency and failure rate
+	 * @param purchases Number of purchases to run
+	 * @param maxInFlight How many purchases may be queued at once. Keep this
+	 *        at or below BillingHelper's queue capacity or requests get
+	 *        rejected and count as failures.
+	 */
+	public static Report run( Context context, FakeBillingTransport transport, int purchases, int maxInFlight ) throws InterruptedException {
+		final AtomicInteger responseCodeBroadcasts = new AtomicInteger( 0 );
+		final AtomicInteger purchaseBroadcasts = new AtomicInteger( 0 );
+		
+		final HashMap<String, Integer> productIndexes = new HashMap<String, Integer>();
+		for( int i = 0; i < purchases; i++ ) {
+			productIndexes.put( PRODUCT_PREFIX + i, i );
+		}
+		
+		transport.setListener( new FakeBillingTransport.Listener() {
+			@Override
+			public void onResponseCode( long requestId, ResponseCode responseCode ) {
+				responseCodeBroadcasts.incrementAndGet();
+				BillingHelper.otherResponse( requestId, responseCode );
+			}
+			
+			@Override
+			public void onPurchaseStateChanged( long requestId, String signedData, String signature ) {
+				purchaseBroadcasts.incrementAndGet();
+				try {
+					BillingHelper.verifyPurchase( signedData, signature );
+				}
+				catch( Base64DecoderException e ) {
+					Log.e( TAG, "Bad payload", e );
+				}
+			}
+		} );
+		
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.SECONDS.toNanos( TIMEOUT_SECS );
+		final Purchases state = new Purchases( purchases, maxInFlight, start );
+		
+		HandlerThread completedThread = new HandlerThread( "BillingLoadHarness" );
+		completedThread.start();
+		Handler completedHandler = new Handler( completedThread.getLooper() ) {
+			@Override
+			@SuppressWarnings( "unchecked" )
+			public void handleMessage( Message msg ) {
+				// Empty for a RESPONSE_CODE that wasn't RESULT_OK, those have
+				// already failed through their callback
+				if( msg.obj == null ) {
+					return;
+				}
+				for( VerifiedPurchase purchase : (ArrayList<VerifiedPurchase>)msg.obj ) {
+					Integer index = productIndexes.get( purchase.productId );
+					if( index != null ) {
+						state.finish( index, false );
+					}
+				}
+			}
+		};
+		
+		BillingHelper.instantiateHelper( context, transport );
+		BillingHelper.setCompletedHandler( completedHandler );
+		PurchaseVerifier previousVerifier = BillingHelper.setVerifier( new PurchaseVerifier( transport.getPublicKey() ) );
+		
+		int confirmedBefore = transport.getConfirmedNotificationCount();
+		int timeouts;
+		try {
+			for( int i = 0; i < purchases; i++ ) {
+				if( !state.inFlight.tryAcquire( deadline - System.nanoTime(), TimeUnit.NANOSECONDS ) ) {
+					break;
+				}
+				final int index = i;
+				state.start( index );
+				BillingHelper.requestPurchaseAsync( context, PRODUCT_PREFIX + index, new BillingCallback() {
+					@Override
+					public void onBillingResponse( BillingResponse response ) {
+						if( !response.isOk() ) {
+							state.finish( index, true );
+						}
+					}
+				} );
+			}
+			
+			if( !state.done.await( deadline - System.nanoTime(), TimeUnit.NANOSECONDS ) ) {
+				Log.e( TAG, "Timed out with " + state.done.getCount() + " purchases outstanding" );
+			}
+		}
+		finally {
+			timeouts = state.finishTimedOut();
+			transport.setListener( null );
+			BillingHelper.setVerifier( previousVerifier );
+			completedThread.quit();
+		}
+		long elapsed = System.nanoTime() - start;
+		
+		// Everything delivered has been queued for confirmation by now. Send
+		// what is still in the batch window; requests go out in order so once
+		// that one is done the rest are too.
+		Future<BillingResponse> confirm = BillingHelper.flushConfirmations();
+		if( confirm != null ) {
+			try {
+				confirm.get( TIMEOUT_SECS, TimeUnit.SECONDS );
+			}
+			catch( ExecutionException e ) {
+				Log.e( TAG, "Confirming failed", e );
+			}
+			catch( TimeoutException e ) {
+				Log.e( TAG, "Timed out confirming" );
+			}
+		}
+		
+		long[] latencies;
+		Report report = new Report();
+		synchronized( state ) {
+			latencies = state.latencies.clone();
+			report.failures = state.failures;
+			report.delivered = state.delivered;
+		}
+		Arrays.sort( latencies );
+		report.purchases = purchases;
+		report.timeouts = timeouts;
+		report.confirmed = transport.getConfirmedNotificationCount() - confirmedBefore;
+		report.responseCodeBroadcasts = responseCodeBroadcasts.get();
+		report.purchaseBroadcasts = purchaseBroadcasts.get();
+		report.elapsedMs = TimeUnit.NANOSECONDS.toMillis( elapsed );
+		report.p50Ms = percentile( latencies, 0.50 ) / 1000000.0;
+		report.p99Ms = percentile( latencies, 0.99 ) / 1000000.0;
+		report.maxMs = latencies.length > 0 ? latencies[ latencies.length - 1 ] / 1000000.0 : 0;
+		report.purchasesPerSec = elapsed > 0 ? report.delivered / ( elapsed / 1000000000.0 ) : 0;
+		
+		Log.i( TAG, report.toString() );
+		return report;
+	}
+	
+	private static long percentile( long[] sorted, double p ) {
+		if( sorted.length == 0 ) {
+			return 0;
+		}
+		int index = (int)Math.ceil( p * sorted.length ) - 1;
+		return sorted[ Math.max( 0, Math.min( index, sorted.length - 1 ) ) ];
+	}
+}
@@ -0,0 +1,56 @@
+package com.badbob.app.getaclue;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+import android.content.Context;
+import android.os.Handler;
+
+/**
+ * Everything BillingHelper needs to talk to the billing service, bundled up
+ * so it can be swapped in and out with a single atomic write. A session is
+ * never changed once made. setCompletedHandler() makes a copy with the new
+ * handler, and instantiateHelper()/stopService() replace it completely.
+ * 
+ * Code that reads the session once and then works off that snapshot
+ * can't see half of a rebind, and stopService() can't pull the service out
+ * from under a request that is already running.
+ */
+final class BillingSession {
+	
+	static final BillingSession EMPTY = new BillingSession( null, null, null, null, null );
+	
+	final BillingTransport transport;
+	final Context context;
+	final Handler completedHandler;
+	
+	final ThreadPoolExecutor requestExecutor;
+	final PurchasePipeline purchasePipeline;
+	
+	BillingSession( BillingTransport transport, Context context, Handler completedHandler, ThreadPoolExecutor requestExecutor, PurchasePipeline purchasePipeline ) {
+		this.transport = transport;
+		this.context = context;
+		this.completedHandler = completedHandler;
+		this.requestExecutor = requestExecutor;
+		this.purchasePipeline = purchasePipeline;
+	}
+	
+	boolean isAlive() {
+		return transport != null && context != null;
+	}
+	
+	BillingSession withCompletedHandler( Handler handler ) {
+		return new BillingSession( transport, context, handler, requestExecutor, purchasePipeline );
+	}
+	
+	/**
+	 * Lets anything already queued finish but doesn't take any more.
+	 */
+	void shutdown() {
+		if( purchasePipeline != null ) {
+			purchasePipeline.stop();
+		}
+		if( requestExecutor != null ) {
+			requestExecutor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package com.badbob.app.getaclue;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+
+/**
+ * Whatever carries billing requests to the market. In the app this is
+ * MarketBillingTransport wrapping the bound IMarketBillingService.
+ */
+public interface BillingTransport {
+	
+	/**
+	 * Same contract as IMarketBillingService.sendBillingRequest(). Returns the
+	 * synchronous response bundle (RESPONSE_CODE, REQUEST_ID, etc.). The
+	 * asynchronous RESPONSE_CODE/IN_APP_NOTIFY/PURCHASE_STATE_CHANGED
+	 * responses come back separately.
+	 * 
+	 * @param request
+	 * @return
+	 * @throws RemoteException
+	 */
+	public Bundle sendBillingRequest( Bundle request ) throws RemoteException;
+}
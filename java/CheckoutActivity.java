@@ -6,6 +6,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import android.content.Context;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -23,29 +24,48 @@ import android.widget.ProgressBar;
 import android.widget.Spinner;
 import android.widget.Toast;
 
+import com.badbob.util.Preloader;
+import com.badbob.util.Typefaces;
+
 public class CheckoutActivity extends ActionBarActivityEx {
 	
+	// The same asset as ActionBarActivityEx's robotoMed, but through Typefaces
+	// so it is only loaded once
+	private static final String ROBOTO_MEDIUM = "fonts/Roboto-Medium.ttf";
+	
+	private static Preloader preloader = null;
+	
+	/**
+	 * Starts parsing the list of states on a background thread. The store can
+	 * call this ahead of time, e.g. when the cart is opened, so checking out
+	 * doesn't wait on it. onCreate() calls it too in case it hasn't been.
+	 */
+	public static synchronized Preloader preload( Context context ) {
+		if( preloader == null ) {
+			preloader = new Preloader( context );
+			preloader.addStringArray( R.array.states_array );
+			preloader.start();
+		}
+		return preloader;
+	}
+	
 	@Override
 	public void onCreate( Bundle savedInstanceState ) {
 		super.onCreate( savedInstanceState );
 		setContentView( R.layout.activity_checkout );
 		
-		((Button)findViewById( R.id.continueBtn )).setTypeface( robotoMed );
-		((TextView)findViewById( R.id.titleText )).setTypeface( robotoMed );
-		((TextView)findViewById( R.id.customerTxt )).setTypeface( robotoMed );
-		((TextView)findViewById( R.id.billingTxt )).setTypeface( robotoMed );
-		((TextView)findViewById( R.id.shippingTxt )).setTypeface( robotoMed );
+		Typefaces.apply( this, ROBOTO_MEDIUM, R.id.continueBtn, R.id.titleText, R.id.customerTxt, R.id.billingTxt, R.id.shippingTxt );
 		
 		hideShoppingCartMenuItem();
 		
-		ArrayAdapter<CharSequence> adapter = ArrayAdapter.createFromResource( this, R.array.states_array, android.R.layout.simple_spinner_item );
-		adapter.setDropDownViewResource( android.R.layout.simple_spinner_dropdown_item );
-		
-		Spinner bStateSpinner = (Spinner)findViewById( R.id.bState );
-		bStateSpinner.setAdapter( adapter );
-		
-		Spinner sStateSpinner = (Spinner)findViewById( R.id.sState );
-		sStateSpinner.setAdapter( adapter );
+		// The state spinners are filled in once the list has been parsed in
+		// the background, which is straight away if it already has been
+		preload( this ).whenLoaded( new Runnable() {
+			@Override
+			public void run() {
+				setStates( ShoppingCart.getInstance() );
+			}
+		} );
 		
 		Button contBtn = (Button)findViewById( R.id.continueBtn );
 		contBtn.setOnClickListener( new OnClickListener() {
@@ -313,12 +333,6 @@ public class CheckoutActivity extends ActionBarActivityEx {
 				edit.setText( billingInfo.get( "CITY" ) );
 			}
 			
-			if( billingInfo.containsKey( "STATE" ) ) {
-				List<String> states = Arrays.asList( getResources().getStringArray( R.array.states_array ) );
-				Spinner spinner = (Spinner)findViewById( R.id.bState );
-				spinner.setSelection( states.indexOf( billingInfo.get( "STATE" ) ) );
-			}
-			
 			if( billingInfo.containsKey( "ZIP" ) ) {
 				EditText edit = (EditText)findViewById( R.id.bZip );
 				edit.setText( billingInfo.get( "ZIP" ) );
@@ -363,6 +377,33 @@ public class CheckoutActivity extends ActionBarActivityEx {
 		return shippingInfo;
 	}
 	
+	/**
+	 * Fills in both state spinners and selects the states from the cart.
+	 */
+	private void setStates( ShoppingCart cart ) {
+		String[] states = Preloader.getStringArray( this, R.array.states_array );
+		ArrayAdapter<String> adapter = new ArrayAdapter<String>( this, android.R.layout.simple_spinner_item, states );
+		adapter.setDropDownViewResource( android.R.layout.simple_spinner_dropdown_item );
+		
+		Spinner bStateSpinner = (Spinner)findViewById( R.id.bState );
+		bStateSpinner.setAdapter( adapter );
+		
+		Spinner sStateSpinner = (Spinner)findViewById( R.id.sState );
+		sStateSpinner.setAdapter( adapter );
+		
+		List<String> stateList = Arrays.asList( states );
+		
+		LinkedHashMap<String, String> billingInfo = cart.getBillingInfo();
+		if( billingInfo != null && billingInfo.containsKey( "STATE" ) ) {
+			bStateSpinner.setSelection( stateList.indexOf( billingInfo.get( "STATE" ) ) );
+		}
+		
+		LinkedHashMap<String, String> shippingInfo = cart.getShippingInfo();
+		if( shippingInfo != null && shippingInfo.containsKey( "SHIPSTATE" ) ) {
+			sStateSpinner.setSelection( stateList.indexOf( shippingInfo.get( "SHIPSTATE" ) ) );
+		}
+	}
+	
 	private void setShippingInfo( ShoppingCart cart ) {
 		LinkedHashMap<String, String> shippingInfo = cart.getShippingInfo();
 		if( shippingInfo != null ) {
@@ -394,12 +435,6 @@ public class CheckoutActivity extends ActionBarActivityEx {
 				edit.setText( shippingInfo.get( "SHIPCITY" ) );
 			}
 			
-			if( shippingInfo.containsKey( "SHIPSTATE" ) ) {
-				List<String> states = Arrays.asList( getResources().getStringArray( R.array.states_array ) );
-				Spinner spinner = (Spinner)findViewById( R.id.sState );
-				spinner.setSelection( states.indexOf( shippingInfo.get( "SHIPSTATE" ) ) );
-			}
-			
 			if( shippingInfo.containsKey( "SHIPZIP" ) ) {
 				EditText edit = (EditText)findViewById( R.id.sZip );
 				edit.setText( shippingInfo.get( "SHIPZIP" ) );
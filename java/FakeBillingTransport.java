@@ -0,0 +1,262 @@
+package com.badbob.app.getaclue;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.badbob.app.getaclue.BillingConstants.ResponseCode;
+import com.badbob.util.Base64;
+
+/**
+ * In-process stand-in for the market billing service. Answers every request
+ * after a configurable delay, fails a configurable fraction of them with a
+ * RemoteException and then plays back the asynchronous broadcasts the
+ * market would send (RESPONSE_CODE, then PURCHASE_STATE_CHANGED for
+ * purchases and restores) to a Listener.
+ * 
+ * The purchase payloads are built like the real ones and signed with a key
+ * pair made for this fake, see getPublicKey(). A purchase skips the
+ * IN_APP_NOTIFY and GET_PURCHASE_INFORMATION round trip, so its payload
+ * carries a nonce from BillingSecurity.generateNonce() made here.
+ */
+public class FakeBillingTransport implements BillingTransport {
+	
+	private static final String TAG = "FakeBillingTransport";
+	
+	/**
+	 * Receives the broadcasts the market would have sent. Called on the fake's
+	 * own broadcast thread.
+	 */
+	public interface Listener {
+		public void onResponseCode( long requestId, ResponseCode responseCode );
+		public void onPurchaseStateChanged( long requestId, String signedData, String signature );
+	}
+	
+	private final AtomicLong nextRequestId = new AtomicLong( 1 );
+	private final AtomicLong nextOrderId = new AtomicLong( 1 );
+	private final Random random = new Random();
+	private final ScheduledExecutorService broadcaster = Executors.newSingleThreadScheduledExecutor();
+	private final AtomicInteger confirmedNotifications = new AtomicInteger( 0 );
+	
+	private final KeyPair keyPair;
+	// Only used on the broadcaster thread
+	private Signature signer = null;
+	
+	private volatile long latencyMs = 0;
+	private volatile long latencyJitterMs = 0;
+	private volatile long broadcastDelayMs = 0;
+	private volatile float failureRate = 0;
+	private volatile ResponseCode responseCode = ResponseCode.RESULT_OK;
+	private volatile int ordersPerRestore = 1;
+	private volatile Listener listener = null;
+	
+	public FakeBillingTransport() {
+		try {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance( "RSA" );
+			generator.initialize( 1024 );
+			keyPair = generator.generateKeyPair();
+		}
+		catch( NoSuchAlgorithmException e ) {
+			throw new RuntimeException( e );
+		}
+	}
+	
+	/**
+	 * @return The Base64 encoded key the payloads are signed with, for a
+	 *         PurchaseVerifier
+	 */
+	public String getPublicKey() {
+		return Base64.encode( keyPair.getPublic().getEncoded() );
+	}
+	
+	/**
+	 * @return How many notifications have been confirmed with
+	 *         CONFIRM_NOTIFICATIONS
+	 */
+	public int getConfirmedNotificationCount() {
+		return confirmedNotifications.get();
+	}
+	
+	/**
+	 * How long sendBillingRequest() blocks, plus up to jitterMs more picked at
+	 * random.
+	 */
+	public FakeBillingTransport setLatency( long latencyMs, long jitterMs ) {
+		this.latencyMs = latencyMs;
+		this.latencyJitterMs = jitterMs;
+		return this;
+	}
+	
+	/**
+	 * How long after the synchronous response the broadcasts are sent.
+	 */
+	public FakeBillingTransport setBroadcastDelay( long delayMs ) {
+		this.broadcastDelayMs = delayMs;
+		return this;
+	}
+	
+	/**
+	 * Fraction of requests (0 to 1) that throw a RemoteException.
+	 */
+	public FakeBillingTransport setFailureRate( float failureRate ) {
+		this.failureRate = failureRate;
+		return this;
+	}
+	
+	/**
+	 * The RESPONSE_CODE returned for every request that doesn't fail.
+	 */
+	public FakeBillingTransport setResponseCode( ResponseCode responseCode ) {
+		this.responseCode = responseCode;
+		return this;
+	}
+	
+	/**
+	 * Number of orders in the PURCHASE_STATE_CHANGED sent for a restore.
+	 */
+	public FakeBillingTransport setOrdersPerRestore( int ordersPerRestore ) {
+		this.ordersPerRestore = ordersPerRestore;
+		return this;
+	}
+	
+	public FakeBillingTransport setListener( Listener listener ) {
+		this.listener = listener;
+		return this;
+	}
+	
+	public void shutdown() {
+		broadcaster.shutdownNow();
+	}
+	
+	@Override
+	public Bundle sendBillingRequest( Bundle request ) throws RemoteException {
+		long delay = latencyMs;
+		if( latencyJitterMs > 0 ) {
+			delay += (long)( random.nextDouble() * latencyJitterMs );
+		}
+		if( delay > 0 ) {
+			try {
+				Thread.sleep( delay );
+			}
+			catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new RemoteException();
+			}
+		}
+		
+		if( failureRate > 0 && random.nextFloat() < failureRate ) {
+			throw new RemoteException();
+		}
+		
+		final String method = request.getString( "BILLING_REQUEST" );
+		final ResponseCode code = responseCode;
+		
+		Bundle response = new Bundle();
+		response.putInt( "RESPONSE_CODE", code.ordinal() );
+		if( "CHECK_BILLING_SUPPORTED".equals( method ) ) {
+			// No request id and no broadcasts for this one
+			return response;
+		}
+		
+		final long requestId = nextRequestId.getAndIncrement();
+		response.putLong( "REQUEST_ID", requestId );
+		
+		final String packageName = request.getString( "PACKAGE_NAME" );
+		final String itemId = request.getString( "ITEM_ID" );
+		final long nonce;
+		final int orderCount;
+		if( "REQUEST_PURCHASE".equals( method ) ) {
+			// The app would ask for it with a nonce of its own after the
+			// IN_APP_NOTIFY
+			nonce = BillingSecurity.generateNonce();
+			orderCount = 1;
+		}
+		else if( "RESTORE_TRANSACTIONS".equals( method ) ) {
+			nonce = request.getLong( "NONCE" );
+			orderCount = ordersPerRestore;
+		}
+		else if( "GET_PURCHASE_INFORMATION".equals( method ) ) {
+			String[] notifyIds = request.getStringArray( "NOTIFY_IDS" );
+			nonce = request.getLong( "NONCE" );
+			orderCount = notifyIds != null ? notifyIds.length : 0;
+		}
+		else {
+			if( "CONFIRM_NOTIFICATIONS".equals( method ) ) {
+				String[] notifyIds = request.getStringArray( "NOTIFY_IDS" );
+				confirmedNotifications.addAndGet( notifyIds != null ? notifyIds.length : 0 );
+			}
+			nonce = 0;
+			orderCount = 0;
+		}
+		
+		broadcaster.schedule( new Runnable() {
+			@Override
+			public void run() {
+				Listener l = listener;
+				if( l == null ) {
+					return;
+				}
+				l.onResponseCode( requestId, code );
+				if( code == ResponseCode.RESULT_OK && orderCount > 0 ) {
+					try {
+						String signedData = makeSignedData( packageName, itemId, nonce, orderCount );
+						l.onPurchaseStateChanged( requestId, signedData, sign( signedData ) );
+					}
+					catch( JSONException e ) {
+						Log.e( TAG, "Couldn't build purchase payload", e );
+					}
+					catch( GeneralSecurityException e ) {
+						Log.e( TAG, "Couldn't sign purchase payload", e );
+					}
+				}
+			}
+		}, broadcastDelayMs, TimeUnit.MILLISECONDS );
+		
+		return response;
+	}
+	
+	private String sign( String signedData ) throws GeneralSecurityException {
+		if( signer == null ) {
+			signer = Signature.getInstance( "SHA1withRSA" );
+		}
+		signer.initSign( keyPair.getPrivate() );
+		signer.update( signedData.getBytes() );
+		return Base64.encode( signer.sign() );
+	}
+	
+	private String makeSignedData( String packageName, String itemId, long nonce, int orderCount ) throws JSONException {
+		JSONArray orders = new JSONArray();
+		for( int i = 0; i < orderCount; i++ ) {
+			long orderId = nextOrderId.getAndIncrement();
+			JSONObject order = new JSONObject();
+			order.put( "notificationId", "fake-notify-" + orderId );
+			order.put( "orderId", "fake-order-" + orderId );
+			order.put( "packageName", packageName );
+			order.put( "productId", itemId != null ? itemId : "android.test.purchased" );
+			order.put( "purchaseTime", System.currentTimeMillis() );
+			order.put( "purchaseState", 0 );
+			orders.put( order );
+		}
+		
+		JSONObject signedData = new JSONObject();
+		signedData.put( "nonce", nonce );
+		signedData.put( "orders", orders );
+		return signedData.toString();
+	}
+}
@@ -3,8 +3,14 @@ package com.badbob.app.getaclue;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.http.conn.HttpHostConnectException;
+import org.json.JSONException;
 
 import com.facebook.android.DialogError;
 import com.facebook.android.Facebook;
@@ -15,6 +21,8 @@ import com.facebook.android.Facebook.ServiceListener;
 import com.badbob.app.getaclue.Match.PlayerAction;
 import com.badbob.app.getaclue.SessionEvents.AuthListener;
 import com.badbob.app.getaclue.SessionEvents.LogoutListener;
+import com.badbob.util.Preloader;
+import com.badbob.util.Typefaces;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -25,9 +33,6 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
-import android.graphics.Typeface;
 import android.graphics.drawable.AnimationDrawable;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -40,6 +45,7 @@ import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
+import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -62,14 +68,77 @@ public class MainActivity extends Activity {
 	
 	private MatchListTask matchListTask;
 	
+	// Coalesces refresh requests so a burst of pushes only runs one
+	// MatchListTask at a time
+	private RefreshScheduler matchListRefresher;
+	private static final long MATCH_LIST_REFRESH_WINDOW_MS = 1000;
+	
+	// Whichever of matchListTask or a MatchListDeltaTask was started last
+	private AsyncTask<?, ?, ?> matchListFetch;
+	
+	// Set while the fetched list is being filtered and serialized in the
+	// background, see prepareMatchList(). The refresh isn't done until it
+	// comes back, and a cancelled one clears it so the list is dropped.
+	private Object matchListPrepare = null;
+	
+	// Set while init() is waiting on the version check. A match list that
+	// comes back before then is held in deferredMatchList and not shown, so
+	// nothing can be clicked before the update dialog has had its chance.
+	private boolean awaitingVersionCheck = false;
+	private Runnable deferredMatchList = null;
+	
+	// Counts the lists from the server put up by applyMatchList(), and what
+	// it was when the current refresh started. A held list is dropped if a
+	// newer one went up in the meantime.
+	private int matchListGeneration = 0;
+	private int refreshGeneration = 0;
+	
+	// Set in Settings when the server turns out not to have the delta
+	// endpoint, then it's MatchListTask every time, in every activity and
+	// launch, until DELTA_SYNC_RECHECK_MS has passed
+	private static final String DELTA_SYNC_UNSUPPORTED_AT = "DeltaSyncUnsupportedAt";
+	private static final long DELTA_SYNC_RECHECK_MS = 7 * 24 * 60 * 60 * 1000L;
+	
+	// Error statuses in a row from the delta endpoint before it is treated
+	// as unsupported. Only touched on the UI thread.
+	private static final int DELTA_SYNC_MAX_FAILURES = 3;
+	private static int deltaSyncFailures = 0;
+	
+	// Loads our-turn matches ahead of them being clicked
+	private MatchPrefetcher matchPrefetcher;
+	
+	// Deletes go out from here, the list doesn't wait for them
+	private MatchDeleteOutbox deleteOutbox;
+	private final MatchDeleteOutbox.Listener deleteOutboxListener = new DeleteOutboxListener();
+	
 	private int activeMatchCount = 0;
 	private int finishedMatchCount = 0;
-	private View matchListView = null;
+	private ListView matchListView = null;
+	private MatchListAdapter matchListAdapter = null;
+	
+	// The match list refresh that is running and the full fetch in it, if
+	// it came to that
+	private Tracer.Span refreshTrace = null;
+	private Tracer.Span fullFetchSpan = null;
+	
+	// The list from the last session, shown until MatchListTask comes back
+	private MatchListCache matchListCache;
+	private boolean showingCachedMatchList = false;
+	
+	// The player from the last session, used until it is reloaded.
+	// playerLogin is the login thisPlayer belongs to.
+	private PlayerProfileCache playerCache;
+	private volatile String playerLogin = null;
 	
 	private BroadcastReceiver refreshMatchesBroadcastReceiver = null;
 	
 	private static final String LOG_TAG = "GetAClue::MainActivity";
 	
+	// Loaded once through Typefaces
+	private static final String FONT = "fonts/vaground2.ttf";
+	
+	private static Preloader preloader = null;
+	
 	public static final int DELETE_MATCH_RESULT_CODE = 10;
 	public static final int REINIT_RESULT_CODE = 20;
 	public static final int REFRESH_TOKENS_WITH_ANIM_RESULT_CODE = 30;
@@ -93,6 +162,13 @@ public class MainActivity extends Activity {
 	
 	private MatchListItemBase lastMatchClicked = null;
 	
+	// The row above may be showing a different match by the time
+	// MatchActivity comes back, so keep the match itself
+	private MatchTwoPlayer lastMatchOpened = null;
+	
+	// Between openMatch() and the activity's result
+	private boolean matchActivityOpen = false;
+	
 	Button startNewBtn = null;
 	Button settingsBtn = null;
 	Button tokensBtn = null;
@@ -106,12 +182,19 @@ public class MainActivity extends Activity {
 	
 	private AdView adView = null;
 	
+	// Runs the startup network calls side by side, see init()
+	private static final ExecutorService startupExecutor = Executors.newCachedThreadPool();
+	
 	@Override
 	public void onCreate( Bundle savedInstanceState ) {
 		super.onCreate( savedInstanceState );
 		
 		Log.i( LOG_TAG, "onCreate" );
 		
+		// Nothing starts it any earlier. This only queues the work, the
+		// lookups and loading happen on the preloader's thread.
+		preload( this );
+		
 		setContentView( R.layout.main );
 		setVolumeControlStream( GetAClueApp.getAppVolumeControlStream() );
 		
@@ -136,7 +219,7 @@ public class MainActivity extends Activity {
 		view.setOnClickListener( new OnClickListener() {
 			@Override
 			public void onClick( View arg0 ) {
-				refreshMatchList();
+				refreshMatchListNow();
 			}
 		} );
 		
@@ -145,9 +228,142 @@ public class MainActivity extends Activity {
 		setVersionText();
 		setServerHostText();
 		
+		matchListRefresher = new RefreshScheduler( new RefreshScheduler.Listener() {
+			@Override
+			public void onStartRefresh() {
+				startMatchListTask();
+			}
+			
+			@Override
+			public void onCancelRefresh() {
+				matchListFetch.cancel( true );
+				matchListPrepare = null;
+				if( refreshTrace != null ) {
+					refreshTrace.fail( "cancelled" );
+				}
+				
+				// Hide the refreshing animation
+				ImageView anim = (ImageView)findViewById( R.id.refreshingAnim );
+				if( anim != null ) {
+					anim.setVisibility( View.INVISIBLE );
+				}
+			}
+		}, MATCH_LIST_REFRESH_WINDOW_MS );
+		
+		matchListCache = new MatchListCache( this );
+		playerCache = new PlayerProfileCache( this );
+		matchPrefetcher = new MatchPrefetcher( this );
+		deleteOutbox = MatchDeleteOutbox.get( this );
+		deleteOutbox.setListener( deleteOutboxListener );
+		showCachedMatchList();
+		
 		init();
 	}
 	
+	/**
+	 * Starts loading what the first screen needs on a background thread: the
+	 * loading animation frames, the font and the window background. Safe to
+	 * call more than once, only the first call does anything. onCreate()
+	 * calls it before setContentView(); GetAClueApp.onCreate() doesn't yet but
+	 * could, it only queues the work. Even the theme lookup for the window
+	 * background happens on the preloader's thread.
+	 */
+	public static synchronized void preload( Context context ) {
+		if( preloader != null ) {
+			return;
+		}
+		
+		preloader = new Preloader( context );
+		preloader.addDrawable( R.drawable.loading_animation );
+		preloader.addFont( FONT );
+		// From MainActivity's own theme, which context's needn't be when it
+		// is the application
+		preloader.addWindowBackground( MainActivity.class );
+		preloader.start();
+	}
+	
+	/**
+	 * Puts up the match list saved from last time, if there is one, so there
+	 * is something to look at while init() talks to the server. It is read
+	 * on a background thread so it doesn't hold up the first draw.
+	 */
+	private void showCachedMatchList() {
+		startupExecutor.execute( new Runnable() {
+			@Override
+			public void run() {
+				MatchListCache.Snapshot loaded = matchListCache.load();
+				if( loaded == null ) {
+					return;
+				}
+				
+				final MatchListCache.Snapshot snapshot = deleteOutbox.filter( loaded );
+				if( snapshot.isEmpty() ) {
+					return;
+				}
+				runOnUiThread( new Runnable() {
+					@Override
+					public void run() {
+						onCachedMatchListLoaded( snapshot );
+					}
+				} );
+			}
+		} );
+	}
+	
+	private void onCachedMatchListLoaded( MatchListCache.Snapshot snapshot ) {
+		// Too late if the real list beat it here
+		if( isFinishing() || matchListAdapter != null ) {
+			return;
+		}
+		
+		showMatchList( snapshot );
+		showingCachedMatchList = true;
+		
+		// If init() is still loading, just show it's refreshing instead of
+		// the loading animation
+		if( loadingImg.getVisibility() == View.VISIBLE ) {
+			loadingImg.setVisibility( View.GONE );
+			ImageView anim = (ImageView)findViewById( R.id.refreshingAnim );
+			if( anim != null ) {
+				anim.setVisibility( View.VISIBLE );
+			}
+		}
+	}
+	
+	/**
+	 * Puts the match list on screen if it isn't already and points it at
+	 * these matches.
+	 * 
+	 * @return true if the matches are different from what was showing
+	 */
+	private boolean showMatchList( MatchListCache.Snapshot snapshot ) {
+		attachMatchListView();
+		return matchListAdapter.setSnapshot( snapshot );
+	}
+	
+	private boolean showMatchList( MatchListAdapter.Update update ) {
+		attachMatchListView();
+		return matchListAdapter.setSnapshot( update );
+	}
+	
+	private void attachMatchListView() {
+		if( matchListView == null ) {
+			matchListAdapter = new MatchListAdapter( this );
+			matchListView = new ListView( this );
+			matchListView.setLayoutParams( new LinearLayout.LayoutParams( LinearLayout.LayoutParams.MATCH_PARENT, LinearLayout.LayoutParams.MATCH_PARENT ) );
+			matchListView.setAdapter( matchListAdapter );
+		}
+		
+		if( matchListView.getParent() == null ) {
+			LinearLayout matchListLayout = (LinearLayout)findViewById( R.id.matchListLayout );
+			matchListLayout.removeAllViews();
+			//if( matchListInitialized ) {
+			//	mainLayout.removeViewAt( MATCH_LIST_VIEW_INDEX );
+			//}
+			matchListLayout.addView( matchListView );
+		}
+	}
+	
 	private void init() {
 		new AsyncTask<Void, Void, Void>() {
 			
@@ -160,10 +376,21 @@ public class MainActivity extends Activity {
 			boolean updateRequired = false;
 			int loginMode = -1;
 			
+			// Set when the match list was started before the version check
+			// came back
+			boolean matchListStarted = false;
+			
+			final Tracer.Span trace = Tracer.start( "init" );
+			
 			@Override
 			protected void onPreExecute() {
-				LinearLayout matchListLayout = (LinearLayout)findViewById( R.id.matchListLayout );
-				matchListLayout.removeAllViews();
+				awaitingVersionCheck = true;
+				deferredMatchList = null;
+				
+				if( !showingCachedMatchList ) {
+					LinearLayout matchListLayout = (LinearLayout)findViewById( R.id.matchListLayout );
+					matchListLayout.removeAllViews();
+				}
 				
 				//progress = ProgressDialog.show( MainActivity.this, "", "Loading...", true );
 				startNewBtn.setVisibility( View.GONE );
@@ -172,31 +399,173 @@ public class MainActivity extends Activity {
 				removeAdsBtn.setVisibility( View.GONE );
 				highScoreLayout.setVisibility( View.GONE );
 				
-				loadingImg.setVisibility( View.VISIBLE );
-				loadingImg.setBackgroundResource( R.drawable.loading_animation );
-				AnimationDrawable frameAnim = (AnimationDrawable)loadingImg.getBackground();
-				frameAnim.start();
+				if( showingCachedMatchList ) {
+					// Leave the cached list up and just show it's refreshing
+					ImageView anim = (ImageView)findViewById( R.id.refreshingAnim );
+					if( anim != null ) {
+						anim.setVisibility( View.VISIBLE );
+					}
+				}
+				else {
+					loadingImg.setVisibility( View.VISIBLE );
+					loadingImg.setBackgroundResource( R.drawable.loading_animation );
+					AnimationDrawable frameAnim = (AnimationDrawable)loadingImg.getBackground();
+					frameAnim.start();
+				}
 				
-				SharedPreferences prefs = GetAClueApp.getPrefs();
-				loginMode = prefs.getInt( "LoginMode", LOGIN_MODE_NOT_SET );
+				loginMode = Settings.get().getInt( "LoginMode", LOGIN_MODE_NOT_SET );
 			}
 
 			@Override
 			protected Void doInBackground( Void... params ) {
 				// TODO: Does this keep running if the activity finishes???
+				
+				// The version check and loading the player are each a round
+				// trip to the server and don't depend on each other so they
+				// run at the same time. The match list only needs the player
+				// so it gets started from onProgressUpdate as soon as the
+				// player is loaded instead of waiting for the version check.
+				// Anything that shows UI for logging in still waits for the
+				// version check.
+				
+				// *************************
+				// *** Check app version ***
+				// *************************
+				Future<Boolean> versionCheck = startupExecutor.submit( new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						WebServiceAdapter wsa = GetAClueApp.getWSAdapter();
+						Tracer.Span span = trace.child( "getAppVersion" );
+						String serverVersion;
+						try {
+							serverVersion = wsa.getAppVersion();
+						}
+						finally {
+							span.end();
+						}
+						String appVersion = getResources().getString( R.string.version_release );
+						return GetAClueApp.requiresUpdate( serverVersion, appVersion );
+					}
+				} );
+				
 				try {
-					// *************************
-					// *** Check app version ***
-					// *************************
-					WebServiceAdapter wsa = GetAClueApp.getWSAdapter();
-					String serverVersion = wsa.getAppVersion();
-					String appVersion = getResources().getString( R.string.version_release );
+					// ***********************
+					// *** Load the player ***
+					// ***********************
+					Future<Player> playerLoad = null;
+					String login = null;
+					if( loginMode == LOGIN_MODE_BASIC ) {
+						// Create the thisPlayer
+						final int id = Settings.get().getInt( "UserID", -1 );
+						if( id != -1 ) {
+							login = "basic:" + id;
+							playerLoad = startupExecutor.submit( new Callable<Player>() {
+								@Override
+								public Player call() throws Exception {
+									Tracer.Span span = trace.child( "Player.fromBasicId" );
+									try {
+										return Player.fromBasicId( id );
+									}
+									finally {
+										span.end();
+									}
+								}
+							} );
+						}
+						else {
+							// No id in prefs
+							badLogin = true;
+						}
+					}
+					else if( loginMode == LOGIN_MODE_FACEBOOK && facebook.isSessionValid() ) {
+						facebook.extendAccessTokenIfNeeded( MainActivity.this, new ServiceListener() {
+							@Override
+							public void onComplete( Bundle values ) {
+								// Save the new token
+								SessionStore.save( facebook, getApplicationContext() );
+								Log.i( LOG_TAG, "Facebook access token extended." );
+							}
+							
+							@Override
+							public void onFacebookError( FacebookError error ) {
+								// TODO: What to do in this case?
+								Log.e( LOG_TAG, error.getMessage() );
+							}
+							
+							@Override
+							public void onError( Error e ) {
+								// TODO: What to do in this case?
+								Log.e( LOG_TAG, e.getMessage() );
+							}
+						} );
+						
+						// Get from the server and set thisPlayer
+						SessionStore.save( facebook, getApplicationContext() );
+						login = "facebook";
+						playerLoad = startupExecutor.submit( new Callable<Player>() {
+							@Override
+							public Player call() throws Exception {
+								Tracer.Span span = trace.child( "Player.fromFacebookId" );
+								try {
+									return Player.fromFacebookId( "me", true );
+								}
+								finally {
+									span.end();
+								}
+							}
+						} );
+					}
+					
+					// On a warm start go with the player from last time and
+					// let the load finish in the background
+					Player cachedPlayer = playerLoad != null ? playerCache.load( login ) : null;
+					if( cachedPlayer != null ) {
+						Log.i( LOG_TAG, "Using the cached player" );
+						GetAClueApp.setThisPlayer( cachedPlayer );
+						playerLogin = login;
+						refreshCachedPlayer( playerLoad, login );
+						
+						if( !versionCheck.isDone() || !versionCheck.get() ) {
+							publishProgress();
+						}
+					}
 					
-					if( GetAClueApp.requiresUpdate( serverVersion, appVersion ) ) {
+					// Hold on to a failed player load until we know there 
+					// isn't an update to show instead
+					ExecutionException playerError = null;
+					if( playerLoad != null && cachedPlayer == null ) {
+						try {
+							Player thisPlayer = playerLoad.get();
+							if( thisPlayer == null ) {
+								// Player was not found on server or is otherwise corrupted so reset everything
+								badLogin = true;
+							}
+							else {
+								GetAClueApp.setThisPlayer( thisPlayer );
+								playerLogin = login;
+								playerCache.save( login, thisPlayer );
+								
+								// Start the match list now unless we already 
+								// know it won't be needed
+								if( !versionCheck.isDone() || !versionCheck.get() ) {
+									publishProgress();
+								}
+							}
+						}
+						catch( ExecutionException e ) {
+							playerError = e;
+						}
+					}
+					
+					if( versionCheck.get() ) {
 						updateRequired = true;
 						return null;
 					}
 					
+					if( playerError != null ) {
+						throw playerError;
+					}
+					
 					// ****************
 					// *** Do login ***
 					// ****************
@@ -211,70 +580,28 @@ public class MainActivity extends Activity {
 						Intent myIntent = new Intent( MainActivity.this, LoginActivity.class );
 						startActivityForResult( myIntent, LOGIN_ACTIVITY_REQUEST );
 					}
-					else if( loginMode == LOGIN_MODE_BASIC ) {
-						// Create the thisPlayer
-						SharedPreferences prefs = GetAClueApp.getPrefs();
-						int id = prefs.getInt( "UserID", -1 );
-						if( id != -1 ) {
-							Player thisPlayer = Player.fromBasicId( id );
-							if( thisPlayer == null ) {
-								// Player was not found on server or is otherwise corrupted so reset everything
-								badLogin = true;
-							}
-							else {
-								GetAClueApp.setThisPlayer( thisPlayer );
-							}
-						}
-						else {
-							// No id in prefs
-							badLogin = true;
-						}
-					}
-					else if( loginMode == LOGIN_MODE_FACEBOOK ) {
-						if( !facebook.isSessionValid() ) {
-							doingFacebookLogin = true;
-							//facebook.authorize( MainActivity.this, new String[] { "publish_stream", "offline_access" }, new LoginDialogListener() );
-							facebook.authorize( MainActivity.this, new String[] { "offline_access" }, new LoginDialogListener() );
-							// FacebookAuthListener gets called when authorize completes
-							// which then calls postLogin
-						}
-						else {
-							facebook.extendAccessTokenIfNeeded( MainActivity.this, new ServiceListener() {
-								@Override
-								public void onComplete( Bundle values ) {
-									// Save the new token
-									SessionStore.save( facebook, getApplicationContext() );
-									Log.i( LOG_TAG, "Facebook access token extended." );
-								}
-								
-								@Override
-								public void onFacebookError( FacebookError error ) {
-									// TODO: What to do in this case?
-									Log.e( LOG_TAG, error.getMessage() );
-								}
-								
-								@Override
-								public void onError( Error e ) {
-									// TODO: What to do in this case?
-									Log.e( LOG_TAG, e.getMessage() );
-								}
-							} );
-							
-							// Get from the server and set thisPlayer
-							SessionStore.save( facebook, getApplicationContext() );
-							Player thisPlayer = Player.fromFacebookId( "me", true );
-							if( thisPlayer == null ) {
-								// Player could not be found. Reqeust login again
-								badLogin = true;
-							}
-							else {
-								GetAClueApp.setThisPlayer( thisPlayer );
-							}
-						}
+					else if( loginMode == LOGIN_MODE_FACEBOOK && playerLoad == null ) {
+						doingFacebookLogin = true;
+						//facebook.authorize( MainActivity.this, new String[] { "publish_stream", "offline_access" }, new LoginDialogListener() );
+						facebook.authorize( MainActivity.this, new String[] { "offline_access" }, new LoginDialogListener() );
+						// FacebookAuthListener gets called when authorize completes
+						// which then calls postLogin
 					}
 					
 					return null;
 				}
+				catch( ExecutionException e ) {
+					// Sort out what the version check or player load threw
+					Throwable cause = e.getCause();
+					if( cause instanceof FacebookError ) {
+						facebookError = true;
+						this.e = (FacebookError)cause;
+					}
+					else {
+						networkError = true;
+						this.e = cause instanceof Exception ? (Exception)cause : e;
+					}
+				}
 				catch( FacebookError e ) {
 					facebookError = true;
 					this.e = e;
@@ -283,12 +610,42 @@ public class MainActivity extends Activity {
 					networkError = true;
 					this.e = e;
 				}
+				finally {
+					// Nothing left to wait for if we bailed out early
+					versionCheck.cancel( true );
+				}
 				
 				return null;
 			}
 			
+			@Override
+			protected void onProgressUpdate( Void... values ) {
+				// The player is loaded, get the match list going while the
+				// version check finishes
+				matchListStarted = true;
+				setTokenText( false );
+				refreshMatchListNow();
+			}
+			
 			@Override
 			protected void onPostExecute( Void voids ) {
+				if( e != null ) {
+					trace.fail( e );
+				}
+				else {
+					trace.end();
+				}
+				
+				awaitingVersionCheck = false;
+				Runnable deferred = deferredMatchList;
+				deferredMatchList = null;
+				
+				if( matchListStarted && ( networkError || facebookError || updateRequired || badLogin ) ) {
+					// Started early but it's not going to be shown now
+					matchListRefresher.cancel();
+					matchListStarted = false;
+				}
+				
 				if( networkError ) {
 					if( progress != null && progress.isShowing() ) {
 						progress.dismiss();
@@ -357,14 +714,11 @@ public class MainActivity extends Activity {
 				}
 				
 				if( badLogin ) {
-					SharedPreferences prefs = GetAClueApp.getPrefs();
-					int id = prefs.getInt( "UserID", -1 );
+					int id = Settings.get().getInt( "UserID", -1 );
 					Log.i( LOG_TAG, "Bad login id from prefs. id = " + id + " - Resetting prefs." );
 					
 					// Clear the LoginMode preference and re-initialize
-					Editor editor = prefs.edit();
-					editor.remove( "LoginMode" );
-					editor.commit();
+					Settings.get().remove( "LoginMode" );
 					
 					// init();
 					new LogoutTask().execute();
@@ -374,13 +728,80 @@ public class MainActivity extends Activity {
 				// If we are doing a facebook login then postLogin gets 
 				// called from the FacebookAuthListener
 				if( loginMode != -1 && !doingFacebookLogin && !noLogin ) {
-					postLogin();
+					postLogin( !matchListStarted );
+				}
+				
+				// No update needed, the early match list can go up now
+				if( deferred != null ) {
+					deferred.run();
 				}
 			}
 			
 		}.execute();
 	}
 	
+	/**
+	 * Waits for the player being loaded at start up, when the cached one is
+	 * already in use, and swaps it in if it turns out to have changed.
+	 */
+	private void refreshCachedPlayer( final Future<Player> playerLoad, final String login ) {
+		startupExecutor.execute( new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final Player player = playerLoad.get();
+					
+					// Comparing it with the cached one serializes it, which is
+					// best kept off the UI thread
+					boolean saved = false;
+					if( player != null && login.equals( playerLogin ) ) {
+						saved = playerCache.save( login, player ).get();
+					}
+					final boolean changed = saved;
+					runOnUiThread( new Runnable() {
+						@Override
+						public void run() {
+							onPlayerRefreshed( player, login, changed );
+						}
+					} );
+				}
+				catch( Exception e ) {
+					// Carry on with the cached one, the next start tries again
+					Log.w( LOG_TAG, "Could not refresh the player", e );
+				}
+			}
+		} );
+	}
+	
+	/**
+	 * @param changed true if the player is different from the cached one,
+	 *        which has already been replaced on disk
+	 */
+	private void onPlayerRefreshed( Player player, String login, boolean changed ) {
+		if( GetAClueApp.getThisPlayer() == null || !login.equals( playerLogin ) ) {
+			// Logged out in the meantime
+			return;
+		}
+		
+		if( player == null ) {
+			// The server doesn't know this login any more, same as a bad
+			// login in init()
+			Log.i( LOG_TAG, "Cached player is gone from the server - Resetting prefs." );
+			Settings.get().remove( "LoginMode" );
+			new LogoutTask().execute();
+			return;
+		}
+		
+		// Only swapped in if something changed so anything holding on to the
+		// cached player isn't left with a stale copy for nothing
+		if( changed ) {
+			Log.i( LOG_TAG, "Player changed since it was cached" );
+			GetAClueApp.setThisPlayer( player );
+			setTokenText( false );
+			initAds();
+		}
+	}
+	
 	private void initAds() {
 		Player thisPlayer = GetAClueApp.getThisPlayer();
 		if( thisPlayer != null && thisPlayer.showAds() && adView == null ) {
@@ -412,6 +833,7 @@ public class MainActivity extends Activity {
 		public void onReceive( Context context, Intent intent ) {
 			if( intent.getAction().compareTo( GetAClueApp.REFRESH_MATCH_LIST_ACTION ) == 0 ) {
 				Log.i( LOG_TAG, "Received refresh match list broadcast" );
+				MatchCache.get().markStale();
 				refreshMatchList();
 			}
 		}
@@ -487,12 +909,26 @@ public class MainActivity extends Activity {
 	@Override
 	public void onPause() {
 		Log.i( LOG_TAG, "onPause" );
+		
+		// Before the next activity can look at the prefs, and so they are
+		// on disk before we can be killed
+		Settings.get().flush();
+		
 		super.onPause();
 	}
 	
 	@Override
 	public void onStop() {
 		Log.i( LOG_TAG, "onStop" );
+		
+		// Tokens and such change while playing, keep the cached player
+		// up to date for next time
+		Player thisPlayer = GetAClueApp.getThisPlayer();
+		String login = playerLogin;
+		if( thisPlayer != null && login != null ) {
+			playerCache.save( login, thisPlayer );
+		}
+		
 		super.onStop();
 	}
 	
@@ -510,25 +946,51 @@ public class MainActivity extends Activity {
 			refreshMatchesBroadcastReceiver = null;
 		}
 		
+		matchListRefresher.cancel();
+		matchPrefetcher.cancel();
+		deleteOutbox.removeListener( deleteOutboxListener );
+		
 		// Notify all the match list items that we are being destroyed
-		if( matchListView != null ) {
-			for( int i = 0; i < ( (ViewGroup)matchListView ).getChildCount(); ++i ) {
-				try {
-					MatchListItemBase item = (MatchListItemBase)( (ViewGroup)matchListView ).getChildAt( i );
-					item.onDestroy();
-				}
-				catch( ClassCastException e ) {
-					// This happens when it runs across a header and can safely be ignored
-					continue;
-				}
-			}
+		if( matchListAdapter != null ) {
+			matchListAdapter.onDestroy();
 		}
 		
 		super.onDestroy();
 	}
 	
+	/**
+	 * Refreshes the match list once things have been quiet for
+	 * MATCH_LIST_REFRESH_WINDOW_MS. For pushes and anything else that can come
+	 * in bunches.
+	 */
 	private void refreshMatchList() {
+		checkMatchListTaskFinished();
+		matchListRefresher.requestRefresh();
+	}
+	
+	/**
+	 * Refreshes the match list without waiting, for when the user is looking
+	 * at it.
+	 */
+	private void refreshMatchListNow() {
+		checkMatchListTaskFinished();
+		matchListRefresher.refreshNow();
+	}
+	
+	// In case the fetch ended without calling onMatchListLoaded
+	// (an error), don't leave the refresher waiting on it forever
+	private void checkMatchListTaskFinished() {
+		if( matchListRefresher.isRefreshing() && matchListFetch != null && matchListFetch.getStatus() == AsyncTask.Status.FINISHED && matchListPrepare == null ) {
+			matchListRefresher.refreshComplete();
+		}
+	}
+	
+	// Only called by matchListRefresher
+	private void startMatchListTask() {
 		Log.i( LOG_TAG, "Refreshing match list" );
+		refreshTrace = Tracer.start( "refresh" );
+		refreshGeneration = matchListGeneration;
+		fullFetchSpan = null;
 		
 		// Show the refreshing animation
 		ImageView anim = (ImageView)findViewById( R.id.refreshingAnim );
@@ -536,23 +998,293 @@ public class MainActivity extends Activity {
 			anim.setVisibility( View.VISIBLE );
 		}
 		
+		if( isDeltaSyncSupported() ) {
+			// onMatchListLoaded will be called when this task finishes
+			MatchListCache.Snapshot current = matchListAdapter != null ? matchListAdapter.getSnapshot() : new MatchListCache.Snapshot();
+			MatchListDeltaTask task = new MatchListDeltaTask( current, refreshTrace );
+			matchListFetch = task;
+			task.execute();
+		}
+		else {
+			startFullMatchListTask();
+		}
+	}
+	
+	private void startFullMatchListTask() {
+		// MatchListTask makes its own calls to the server so only the whole
+		// of it can be timed
+		fullFetchSpan = refreshTrace != null ? refreshTrace.child( "MatchListTask" ) : null;
+		
 		// onMatchListTaskComplete will be called when this task finishes
 		matchListTask = new MatchListTask( this );
+		matchListFetch = matchListTask;
 		matchListTask.execute( MatchListTask.COMBINED_TURN );
 	}
 	
-	// This is called when MatchListTask is completed
+	/**
+	 * This is called when MatchListTask is completed. It only hands back the
+	 * matches it loaded; the rows for them are made, and recycled, by
+	 * matchListAdapter.
+	 * 
+	 * @param snapshot The matches or null if they couldn't be loaded
+	 */
+	public void onMatchListTaskComplete( MatchListCache.Snapshot snapshot ) {
+		if( fullFetchSpan != null ) {
+			fullFetchSpan.end();
+			fullFetchSpan = null;
+		}
+		
+		prepareMatchList( snapshot, matchListTask.getActiveMatchCount(), matchListTask.getFinishedMatchCount() );
+	}
+	
+	/**
+	 * For a MatchListTask that still builds the rows itself. Only the matches
+	 * are kept, the rows are thrown away.
+	 * 
+	 * @param view The rows or null if the matches couldn't be loaded
+	 */
 	public void onMatchListTaskComplete( LinearLayout view ) {
+		MatchListCache.Snapshot snapshot = null;
 		if( view != null ) {
-			matchListView = view;
+			snapshot = MatchListCache.Snapshot.fromView( view );
+			destroyMatchListItems( view );
+		}
+		onMatchListTaskComplete( snapshot );
+	}
+	
+	private void destroyMatchListItems( ViewGroup view ) {
+		for( int i = 0; i < view.getChildCount(); ++i ) {
+			View child = view.getChildAt( i );
+			if( child instanceof MatchListItemBase ) {
+				( (MatchListItemBase)child ).onDestroy();
+			}
+		}
+	}
+	
+	/**
+	 * Takes out the matches we have deleted and serializes the list on a
+	 * background thread, so the UI thread only has to compare the matches,
+	 * then hands it to onMatchListLoaded().
+	 * 
+	 * @param snapshot The matches or null if they couldn't be loaded
+	 * @param activeCount
+	 * @param finishedCount
+	 */
+	private void prepareMatchList( final MatchListCache.Snapshot snapshot, final int activeCount, final int finishedCount ) {
+		if( snapshot == null ) {
+			onMatchListLoaded( null, activeCount, finishedCount );
+			return;
+		}
+		
+		final Object token = new Object();
+		matchListPrepare = token;
+		final byte[] shownBytes = matchListAdapter != null ? matchListAdapter.getSnapshotBytes() : null;
+		startupExecutor.execute( new Runnable() {
+			@Override
+			public void run() {
+				// The server may not have caught up with our deletes yet
+				MatchListCache.Snapshot filtered = deleteOutbox.filter( snapshot );
+				final int active = activeCount - ( snapshot.activeMatches.size() - filtered.activeMatches.size() );
+				final int finished = finishedCount - ( snapshot.finishedMatches.size() - filtered.finishedMatches.size() );
+				final MatchListAdapter.Update update = MatchListAdapter.prepare( filtered, shownBytes );
+				
+				runOnUiThread( new Runnable() {
+					@Override
+					public void run() {
+						// Cancelled while it was being prepared
+						if( matchListPrepare != token || isFinishing() ) {
+							return;
+						}
+						matchListPrepare = null;
+						onMatchListLoaded( update, active, finished );
+					}
+				} );
+			}
+		} );
+	}
+	
+	/**
+	 * Gets the matches out of the server and merges them into what we have.
+	 * Falls back to MatchListTask if that doesn't work.
+	 */
+	private class MatchListDeltaTask extends AsyncTask<Void, Void, MatchListCache.Snapshot> {
+		private final MatchListCache.Snapshot current;
+		private final Tracer.Span trace;
+		private Exception e = null;
+		
+		public MatchListDeltaTask( MatchListCache.Snapshot current, Tracer.Span trace ) {
+			this.current = current;
+			this.trace = trace;
+		}
+		
+		@Override
+		protected MatchListCache.Snapshot doInBackground( Void... params ) {
+			try {
+				return fetchMatchListDelta( current, trace );
+			}
+			catch( Exception e ) {
+				this.e = e;
+			}
+			return null;
+		}
+		
+		@Override
+		protected void onPostExecute( MatchListCache.Snapshot snapshot ) {
+			onDeltaSyncResult( e );
+			if( snapshot == null ) {
+				Log.w( LOG_TAG, "Match list delta failed, trying a full fetch", e );
+				
+				// Still counts as the same refresh as far as 
+				// matchListRefresher is concerned
+				startFullMatchListTask();
+				return;
+			}
+			
+			prepareMatchList( snapshot, snapshot.activeMatches.size(), snapshot.finishedMatches.size() );
+		}
+	}
+	
+	private static boolean isDeltaSyncSupported() {
+		long unsupportedAt = Settings.get().getLong( DELTA_SYNC_UNSUPPORTED_AT, 0 );
+		return unsupportedAt == 0 || System.currentTimeMillis() - unsupportedAt > DELTA_SYNC_RECHECK_MS;
+	}
+	
+	/**
+	 * Keeps track of whether the server has delta sync.
+	 * 
+	 * @param e What the delta fetch failed with or null if it worked
+	 */
+	private static void onDeltaSyncResult( Exception e ) {
+		if( e == null ) {
+			deltaSyncFailures = 0;
+			if( Settings.get().getLong( DELTA_SYNC_UNSUPPORTED_AT, 0 ) != 0 ) {
+				Settings.get().remove( DELTA_SYNC_UNSUPPORTED_AT );
+			}
+			return;
+		}
+		
+		// Not being able to reach the server says nothing about it
+		boolean unsupported = e instanceof JSONException;
+		if( e instanceof MatchListDeltaClient.HttpStatusException ) {
+			unsupported = ( (MatchListDeltaClient.HttpStatusException)e ).isUnsupported() || ++deltaSyncFailures >= DELTA_SYNC_MAX_FAILURES;
+		}
+		if( unsupported ) {
+			Log.w( LOG_TAG, "No match list delta sync on this server, using full fetches" );
+			Settings.get().putLong( DELTA_SYNC_UNSUPPORTED_AT, System.currentTimeMillis() );
+			deltaSyncFailures = 0;
+		}
+	}
+	
+	/**
+	 * Runs on a background thread.
+	 * 
+	 * @param trace The call to the server is timed as a span in here, can be
+	 *        null
+	 * @return current with the changes from the server merged in
+	 */
+	private static MatchListCache.Snapshot fetchMatchListDelta( MatchListCache.Snapshot current, Tracer.Span trace ) throws Exception {
+		// Through WebServiceAdapter so it goes out in the player's session
+		MatchListDeltaClient client = new MatchListDeltaClient( GetAClueApp.getWSAdapter() );
+		Tracer.Span span = trace != null ? trace.child( MatchListDeltaClient.PATH ) : null;
+		MatchListDeltaClient.Delta delta;
+		try {
+			delta = client.fetch( current.etag, current.revisions );
+		}
+		catch( Exception e ) {
+			if( span != null ) {
+				span.fail( e );
+			}
+			throw e;
+		}
+		if( span != null ) {
+			span.end();
+		}
+		Log.i( LOG_TAG, "Match list delta: " + delta );
+		return MatchListDeltaClient.merge( current, delta );
+	}
+	
+	/**
+	 * Shows and saves a refreshed list and remembers the matches in
+	 * MatchCache.
+	 */
+	private void applyMatchList( MatchListCache.Snapshot snapshot ) {
+		matchListGeneration++;
+		if( showMatchList( snapshot ) && matchListAdapter.getSnapshotBytes() != null ) {
+			matchListCache.save( matchListAdapter.getSnapshotBytes() );
+		}
+		MatchCache.get().update( snapshot );
+	}
+	
+	private void applyMatchList( MatchListAdapter.Update update ) {
+		matchListGeneration++;
+		if( showMatchList( update ) && matchListAdapter.getSnapshotBytes() != null ) {
+			matchListCache.save( matchListAdapter.getSnapshotBytes() );
+		}
+		MatchCache.get().update( update.snapshot );
+	}
+	
+	/**
+	 * Common end of a match list refresh.
+	 * 
+	 * @param update The matches, already filtered by deleteOutbox, or null if
+	 *        they couldn't be loaded
+	 * @param activeCount
+	 * @param finishedCount
+	 */
+	private void onMatchListLoaded( MatchListAdapter.Update update, int activeCount, int finishedCount ) {
+		if( awaitingVersionCheck ) {
+			// The refresh stays in progress until init() lets this through
+			final MatchListAdapter.Update loaded = update;
+			final int loadedActive = activeCount;
+			final int loadedFinished = finishedCount;
+			final int generation = refreshGeneration;
+			deferredMatchList = new Runnable() {
+				@Override
+				public void run() {
+					if( matchListGeneration != generation ) {
+						// Something newer went up while this one was held
+						Log.i( LOG_TAG, "Dropping a match list held for the version check, a newer one is showing" );
+						matchListRefresher.refreshComplete();
+						if( refreshTrace != null ) {
+							refreshTrace.fail( "superseded" );
+							refreshTrace = null;
+						}
+						return;
+					}
+					onMatchListLoaded( loaded, loadedActive, loadedFinished );
+				}
+			};
+			return;
+		}
+		
+		matchListRefresher.refreshComplete();
+		
+		Tracer.Span trace = refreshTrace;
+		refreshTrace = null;
+		if( trace != null && update == null ) {
+			trace.fail( "no match list" );
+		}
+		
+		if( update != null ) {
+			Tracer.Span span = trace != null ? trace.child( "apply" ) : null;
+			applyMatchList( update );
+			
+			// The loading animation is done with. Before prefetching, which
+			// preloads what the matches need in its place.
+			Preloader.releaseDrawables();
+			matchPrefetcher.prefetch( update.snapshot );
+			if( span != null ) {
+				span.end();
+			}
+			if( trace != null ) {
+				trace.end();
+			}
+			
+			// We got through to the server so don't wait out the backoff
+			deleteOutbox.retryNow();
 			
-			LinearLayout matchListLayout = (LinearLayout)findViewById( R.id.matchListLayout );
-			matchListLayout.removeAllViews();
-			//if( matchListInitialized ) {
-			//	mainLayout.removeViewAt( MATCH_LIST_VIEW_INDEX );
-			//}
-			matchListLayout.addView( view );
 			matchListInitialized = true;
+			showingCachedMatchList = false;
 			
 			// Hide the refreshing animation
 			ImageView anim = (ImageView)findViewById( R.id.refreshingAnim );
@@ -561,8 +1293,8 @@ public class MainActivity extends Activity {
 			}
 		}
 		
-		activeMatchCount = matchListTask.getActiveMatchCount();
-		finishedMatchCount = matchListTask.getFinishedMatchCount();
+		activeMatchCount = activeCount;
+		finishedMatchCount = finishedCount;
 		
 		startNewBtn.setVisibility( View.VISIBLE );
 		settingsBtn.setVisibility( View.VISIBLE );
@@ -589,6 +1321,12 @@ public class MainActivity extends Activity {
 	public void onActivityResult( int requestCode, int resultCode, Intent data ) {
 		super.onActivityResult( requestCode, resultCode, data );
 		
+		// The activity is done with the match it was handed
+		if( ( requestCode == MATCH_ACTIVITY_REQUEST || requestCode == MATCH_SUMMARY_ACTIVITY_REQUEST ) && lastMatchOpened != null ) {
+			MatchRegistry.get().remove( lastMatchOpened.getId() );
+			matchActivityOpen = false;
+		}
+		
 		switch( requestCode ) {
 			case LOGIN_ACTIVITY_REQUEST: {
 				if( resultCode == -1 ) {
@@ -601,10 +1339,10 @@ public class MainActivity extends Activity {
 			}
 			case MATCH_ACTIVITY_REQUEST: {
 				if( resultCode == DELETE_MATCH_RESULT_CODE ) {
-					// Delete the last clicked match
-					if( lastMatchClicked != null ) {
-						DeleteMatchAsyncTask task = new DeleteMatchAsyncTask( lastMatchClicked.getMatch() );
-						task.execute();
+					// Delete the last opened match
+					if( lastMatchOpened != null ) {
+						deleteMatch( lastMatchOpened );
+						lastMatchOpened = null;
 					}
 				}
 				
@@ -660,20 +1398,34 @@ public class MainActivity extends Activity {
 	}
 	
 	private void postLogin() {
+		postLogin( true );
+	}
+	
+	/**
+	 * @param refresh false if the match list has already been started
+	 */
+	private void postLogin( boolean refresh ) {
+		Tracer.Span trace = Tracer.start( "postLogin" );
 		try {
 			initAds();
 			setTokenText( false );
-			refreshMatchList();
+			if( refresh ) {
+				refreshMatchListNow();
+			}
 			
 			AppRater.appLaunched( this );
+			trace.end();
 		}
 		catch( Exception e ) {
+			trace.fail( e );
 			onNetworkError( e );
 		}
 	}
 	
 	public void onMatchClick( View view ) {
-		if( !haltClicks ) {
+		// The cached list can be clicked before we are logged in, or before
+		// we know whether an update is needed
+		if( !haltClicks && !awaitingVersionCheck && GetAClueApp.getThisPlayer() != null ) {
 			haltClicks = true;
 			
 			GetAClueApp.playSound( SoundManager.SOUND_MATCH_CLICK );
@@ -685,10 +1437,29 @@ public class MainActivity extends Activity {
 			NotificationManager notificationManager = (NotificationManager)getSystemService( Context.NOTIFICATION_SERVICE );
 			notificationManager.cancel( GetAClueApp.APP_NOTIFICATION_ID );
 			
-			// Always update the match from the server before opening the 
+			// If the match was synced recently (and no push has come in
+			// since) it is good enough to open straight away.
+			// MatchRevalidateTask checks it in the background and swaps it
+			// for the server's if that has moved on.
+			// The row can be rebound to another match by a refresh or a scroll
+			// while we are busy, so take what we need from it now
+			int matchId = lastMatchClicked.getMatchId();
+			MatchTwoPlayer cached = MatchCache.get().getFresh( matchId );
+			if( cached != null ) {
+				Log.i( LOG_TAG, "Opening match from cache" );
+				if( matchListAdapter != null ) {
+					matchListAdapter.updateMatch( cached );
+				}
+				openMatch( cached );
+				new MatchRevalidateTask( cached ).execute();
+				refreshMatchList();
+				return;
+			}
+			
+			// Otherwise update the match from the server before opening the 
 			// match activity just in case it was changed by the either player
 			// and it has not refreshed in the list yet.
-			new MatchUpdateTask().execute();
+			new MatchUpdateTask( matchId, lastMatchClicked.getMatch() ).execute();
 		}
 	}
 	
@@ -696,9 +1467,27 @@ public class MainActivity extends Activity {
 		private Exception e = null;
 		private boolean networkError = false;
 		
+		private final int matchId;
+		
+		// The match as it was in the list, replaced by the updated one
+		private MatchTwoPlayer match;
+		
+		public MatchUpdateTask( int matchId, MatchTwoPlayer match ) {
+			this.matchId = matchId;
+			this.match = match;
+		}
+		
+		// The list as of the revision check, if it was done
+		private MatchListCache.Snapshot checked = null;
+		private MatchListCache.Snapshot current = null;
+		
+		private final Tracer.Span trace = Tracer.start( "matchUpdate" );
+		
 		@Override
 		protected void onPreExecute() {
-			
+			if( isDeltaSyncSupported() && matchListAdapter != null ) {
+				current = matchListAdapter.getSnapshot();
+			}
 		}
 		
 		@Override
@@ -707,25 +1496,61 @@ public class MainActivity extends Activity {
 			
 			Log.i( LOG_TAG, "Updating match from match list" );
 			
+			// A delta sync tells us the match's revision, which is a lot less
+			// than loading the whole thing. If it hasn't moved and we already
+			// have that revision loaded in full there's nothing to load.
+			int revision = MatchCache.UNKNOWN_REVISION;
+			if( current != null ) {
+				try {
+					Integer before = current.revisions.get( matchId );
+					checked = fetchMatchListDelta( current, trace );
+					Integer after = checked.revisions.get( matchId );
+					if( after != null ) {
+						revision = after.intValue();
+					}
+					if( before != null && before.equals( after ) ) {
+						MatchTwoPlayer full = MatchCache.get().getFull( matchId, revision );
+						if( full != null ) {
+							match = full;
+							return null;
+						}
+					}
+				}
+				catch( Exception e ) {
+					Log.w( LOG_TAG, "Revision check failed, loading the whole match", e );
+					checked = null;
+				}
+			}
+			
+			Tracer.Span span = trace.child( "MatchTwoPlayer.loadFromId" );
 			try {
-				lastMatchClicked.setMatch( MatchTwoPlayer.loadFromId( lastMatchClicked.getMatchId(), true, true ) );
+				match = MatchTwoPlayer.loadFromId( matchId, true, true );
+				MatchCache.get().put( match, revision );
 			}
 			catch( IOException e ) {
+				span.fail( e );
 				ret.putBoolean( "networkError", true );
 			}
 			catch( WebServiceException e ) {
+				span.fail( e );
 				ret.putBoolean( "networkError", true );
 			}
 			catch( Exception e ) {
+				span.fail( e );
 				Log.e( LOG_TAG, "Unknown exception" );
 				Log.e( LOG_TAG, Log.getStackTraceString( e ) );
 			}
+			finally {
+				span.end();
+			}
 			
 			return null;
 		}
 		
 		@Override
 		protected void onPostExecute( Void param ) {
+			trace.end();
+			
 			if( networkError ) {
 				onNetworkError( e );
 				return;
@@ -734,68 +1559,175 @@ public class MainActivity extends Activity {
 			// TODO: Not real sure this is necessary
 			//lastMatchClicked.refresh();
 			
-			PlayerAction action = lastMatchClicked.getMatch().getThisPlayerAction();
-			if( action == PlayerAction.FINISHED_SUMMARY ) {
-				// Show the match summary
-				Intent myIntent = new Intent( MainActivity.this, MatchSummaryActivity.class );
-				myIntent.putExtra( "Match", lastMatchClicked.getMatch() );
-				startActivityForResult( myIntent, MATCH_SUMMARY_ACTIVITY_REQUEST );
+			if( checked != null ) {
+				// Might as well show anything else that changed too
+				applyMatchList( checked );
 			}
-			else {
-				// Start the Match activity passing the Match object to the activity
-				Intent myIntent = new Intent( MainActivity.this, MatchActivity.class );
-				myIntent.putExtra( "Match", lastMatchClicked.getMatch() );
-				startActivityForResult( myIntent, MATCH_ACTIVITY_REQUEST );
+			if( matchListAdapter != null ) {
+				// Or the row goes back to the old match when it is recycled
+				matchListAdapter.updateMatch( match );
 			}
+			
+			openMatch( match );
 		}
 	}
 	
-	private class DeleteMatchAsyncTask extends AsyncTask<Void,Void,Void> {
-		private boolean networkError = false;
-		private Exception e = null;
-		private MatchTwoPlayer match = null;
+	/**
+	 * Reloads a match that was opened from MatchCache without checking. The
+	 * match has no version of its own, so whose turn it is and what this
+	 * player can do stand in for one: those only change when the other
+	 * player moves, resigns or the match ends. If they have changed the
+	 * cache and the list get the new match, and if it is still open it is
+	 * reopened with it so the player doesn't play a turn that is gone.
+	 */
+	private class MatchRevalidateTask extends AsyncTask<Void, Void, MatchTwoPlayer> {
+		private final MatchTwoPlayer opened;
 		
-		public DeleteMatchAsyncTask( MatchTwoPlayer match ) {
-			this.match = match;
-		}
+		// Taken before the match activity can change the match
+		private final boolean wasThisPlayersTurn;
+		private final PlayerAction action;
 		
-		@Override
-		protected void onPreExecute() {
-			
+		public MatchRevalidateTask( MatchTwoPlayer opened ) {
+			this.opened = opened;
+			wasThisPlayersTurn = opened.isThisPlayersTurn();
+			action = opened.getThisPlayerAction();
 		}
 		
 		@Override
-		protected Void doInBackground( Void... params ) {
+		protected MatchTwoPlayer doInBackground( Void... arg0 ) {
 			try {
-				if( match != null ) {
-					WebServiceAdapter wsa = GetAClueApp.getWSAdapter();
-					wsa.deleteMatch( match );
-				}
+				return MatchTwoPlayer.loadFromId( opened.getId(), true, true );
 			}
-			catch( IOException e ) {
-				networkError = true;
-				this.e = e;
+			catch( Exception e ) {
+				// The cached one is all we have, leave it open
+				Log.w( LOG_TAG, "Could not revalidate match " + opened.getId() + ": " + e.getMessage() );
+				return null;
 			}
-			catch( WebServiceException e ) {
-				networkError = true;
-				this.e = e;
+		}
+		
+		@Override
+		protected void onPostExecute( MatchTwoPlayer match ) {
+			if( match == null || isFinishing() ) {
+				return;
 			}
-			catch( Exception e ) {
-				Log.e( LOG_TAG, "Unknown exception" );
-				Log.e( LOG_TAG, Log.getStackTraceString( e ) );
+			if( match.isThisPlayersTurn() == wasThisPlayersTurn && match.getThisPlayerAction() == action ) {
+				return;
 			}
 			
-			return null;
+			Log.i( LOG_TAG, "Match " + match.getId() + " changed since it was cached" );
+			MatchCache.get().put( match, MatchCache.UNKNOWN_REVISION );
+			if( matchListAdapter != null ) {
+				matchListAdapter.updateMatch( match );
+			}
+			
+			if( matchActivityOpen && lastMatchOpened == opened ) {
+				finishActivity( action == PlayerAction.FINISHED_SUMMARY ? MATCH_SUMMARY_ACTIVITY_REQUEST : MATCH_ACTIVITY_REQUEST );
+				openMatch( match );
+			}
 		}
+	}
+	
+	private void openMatch( MatchTwoPlayer match ) {
+		lastMatchOpened = match;
+		matchActivityOpen = true;
 		
+		PlayerAction action = match.getThisPlayerAction();
+		if( action == PlayerAction.FINISHED_SUMMARY ) {
+			// Show the match summary
+			Intent myIntent = new Intent( MainActivity.this, MatchSummaryActivity.class );
+			MatchRegistry.get().putMatch( myIntent, match );
+			startActivityForResult( myIntent, MATCH_SUMMARY_ACTIVITY_REQUEST );
+		}
+		else {
+			// Start the Match activity passing the Match object to the activity
+			// (MatchRegistry also hands it over without the Intent)
+			Intent myIntent = new Intent( MainActivity.this, MatchActivity.class );
+			MatchRegistry.get().putMatch( myIntent, match );
+			startActivityForResult( myIntent, MATCH_ACTIVITY_REQUEST );
+		}
+	}
+	
+	/**
+	 * Takes the match out of the list straight away. The delete itself goes
+	 * through deleteOutbox and DeleteOutboxListener hears how it went.
+	 */
+	private void deleteMatch( MatchTwoPlayer match ) {
+		deleteOutbox.delete( match );
+		MatchCache.get().remove( match.getId() );
+		MatchRegistry.get().remove( match.getId() );
+		hideDeletedMatches();
+	}
+	
+	/**
+	 * Takes whatever deleteOutbox is still sending out of the list. The
+	 * outbox posts the filtered list back rather than making us wait.
+	 */
+	private void hideDeletedMatches() {
+		if( matchListAdapter == null ) {
+			return;
+		}
+		
+		final MatchListCache.Snapshot current = matchListAdapter.getSnapshot();
+		deleteOutbox.filter( current, new MatchDeleteOutbox.FilterCallback() {
+			@Override
+			public void onFiltered( MatchListCache.Snapshot snapshot ) {
+				if( isFinishing() || matchListAdapter == null ) {
+					return;
+				}
+				if( matchListAdapter.getSnapshot() != current ) {
+					// The list changed in the meantime, go again with that one
+					hideDeletedMatches();
+					return;
+				}
+				
+				activeMatchCount -= current.activeMatches.size() - snapshot.activeMatches.size();
+				finishedMatchCount -= current.finishedMatches.size() - snapshot.finishedMatches.size();
+				if( showMatchList( snapshot ) && matchListAdapter.getSnapshotBytes() != null ) {
+					matchListCache.save( matchListAdapter.getSnapshotBytes() );
+				}
+			}
+		} );
+	}
+	
+	/**
+	 * Reconciles the list with what the server made of a delete. The row is
+	 * already gone, so a confirmed delete needs nothing more; a failed one
+	 * puts the match back without refetching the list.
+	 */
+	private class DeleteOutboxListener implements MatchDeleteOutbox.Listener {
 		@Override
-		protected void onPostExecute( Void voids ) {
-			if( networkError ) {
-				onNetworkError( e );
+		public void onDeleteConfirmed( MatchTwoPlayer match ) {
+			Log.i( LOG_TAG, "Match " + match.getId() + " deleted" );
+		}
+		
+		@Override
+		public void onDeleteFailed( MatchTwoPlayer match, Exception e ) {
+			Log.w( LOG_TAG, "Could not delete match " + match.getId(), e );
+			Toast.makeText( MainActivity.this, "Couldn't delete the match.", Toast.LENGTH_SHORT ).show();
+			
+			if( matchListAdapter == null ) {
 				return;
 			}
 			
-			refreshMatchList();
+			MatchListCache.Snapshot snapshot = matchListAdapter.getSnapshot();
+			if( snapshot.contains( match.getId() ) ) {
+				// A refresh already brought it back
+				return;
+			}
+			
+			// Back at the top of the active matches. It has no revision, and
+			// no etag so the server can't answer with a 304, so the next delta
+			// sync sends it again and puts it in its place.
+			snapshot = snapshot.copy();
+			snapshot.activeMatches.add( 0, match );
+			snapshot.revisions.remove( match.getId() );
+			snapshot.etag = null;
+			if( showMatchList( snapshot ) ) {
+				activeMatchCount++;
+				if( matchListAdapter.getSnapshotBytes() != null ) {
+					matchListCache.save( matchListAdapter.getSnapshotBytes() );
+				}
+			}
 		}
 	}
 	
@@ -817,31 +1749,15 @@ public class MainActivity extends Activity {
 	}
 	
 	private void setFonts() {
-		Typeface tf = Typeface.createFromAsset( getAssets(), "fonts/vaground2.ttf" );
-		
-		Button btn = (Button)findViewById( R.id.startNewMatchButton );
-		btn.setTypeface( tf );
-		
-		btn = (Button)findViewById( R.id.settingsButton );
-		btn.setTypeface( tf );
-		
-		btn = (Button)findViewById( R.id.getTokensButton );
-		btn.setTypeface( tf );
-		
-		btn = (Button)findViewById( R.id.removeAdsButton );
-		btn.setTypeface( tf );
-		
-		TextView tv = (TextView)findViewById( R.id.totalCoins );
-		tv.setTypeface( tf );
-		
-		tv = (TextView)findViewById( R.id.highScoreText );
-		tv.setTypeface( tf );
-		
-		tv = (TextView)findViewById( R.id.highScore );
-		tv.setTypeface( tf );
-		
-		tv = (TextView)findViewById( R.id.highScorePlayer );
-		tv.setTypeface( tf );
+		Typefaces.apply( this, FONT,
+				R.id.startNewMatchButton,
+				R.id.settingsButton,
+				R.id.getTokensButton,
+				R.id.removeAdsButton,
+				R.id.totalCoins,
+				R.id.highScoreText,
+				R.id.highScore,
+				R.id.highScorePlayer );
 	}
 	
 	// This is used by facebook authorize but I'm not sure why
@@ -875,6 +1791,10 @@ public class MainActivity extends Activity {
 						SessionStore.save( facebook, getApplicationContext() );
 						Player thisPlayer = Player.fromFacebookId( "me", true );
 						GetAClueApp.setThisPlayer( thisPlayer );
+						if( thisPlayer != null ) {
+							playerLogin = "facebook";
+							playerCache.save( playerLogin, thisPlayer );
+						}
 						return null;
 					}
 					catch( Exception e ) {
@@ -898,9 +1818,7 @@ public class MainActivity extends Activity {
 		
 		public void onAuthFail( String error ) {
 			SessionStore.clear( getApplicationContext() );
-			Editor editor = GetAClueApp.getPrefs().edit();
-			editor.putInt( "LoginMode", LOGIN_MODE_NOT_SET );
-			editor.commit();
+			Settings.get().putInt( "LoginMode", LOGIN_MODE_NOT_SET );
 			//fbAuthFailed = true;
 			//fbAuthError = error;
 			init();
@@ -951,9 +1869,14 @@ public class MainActivity extends Activity {
 			
 			GetAClueApp.setThisPlayer( null );
 			SessionStore.clear( getApplicationContext() );
-			Editor editor = GetAClueApp.getPrefs().edit();
-			editor.putInt( "LoginMode", LOGIN_MODE_NOT_SET );
-			editor.commit();
+			playerLogin = null;
+			playerCache.clear();
+			matchListCache.clear();
+			MatchCache.get().clear();
+			MatchRegistry.get().clear();
+			deleteOutbox.clear();
+			showingCachedMatchList = false;
+			Settings.get().putInt( "LoginMode", LOGIN_MODE_NOT_SET );
 			init();
 		}
 	}
@@ -961,14 +1884,12 @@ public class MainActivity extends Activity {
 	// TODO: This never seems to get called
 	public class FacebookLogoutListener implements LogoutListener {
 		public void onLogoutBegin() {
-			
+		
 		}
 		
 		public void onLogoutFinish() {
 			SessionStore.clear( getApplicationContext() );
-			Editor editor = GetAClueApp.getPrefs().edit();
-			editor.putInt( "LoginMode", LOGIN_MODE_NOT_SET );
-			editor.commit();
+			Settings.get().putInt( "LoginMode", LOGIN_MODE_NOT_SET );
 			init();
 		}
 	}
@@ -1000,7 +1921,7 @@ public class MainActivity extends Activity {
 							init();
 						}
 						else {
-							refreshMatchList();
+							refreshMatchListNow();
 						}
 					}
 				} );
@@ -1028,6 +1949,9 @@ public class MainActivity extends Activity {
 						msg += lineSep + lineSep + e.getMessage();
 						msg += lineSep + lineSep + Log.getStackTraceString( e );
 						
+						// What was slow leading up to it
+						msg += lineSep + lineSep + "Traces:" + lineSep + Tracer.exportJSON();
+						
 						// Send an email
 						Intent i = new Intent( Intent.ACTION_SEND );
 						i.setType( "message/rfc822" );
@@ -1086,14 +2010,12 @@ public class MainActivity extends Activity {
 	}
 	
 	private void setTokenText( boolean animate ) {
-		Typeface tf = Typeface.createFromAsset( getAssets(), "fonts/vaground2.ttf" );
-		
 		TextView tv = (TextView)findViewById( R.id.totalCoins );
 		ImageView iv = (ImageView)findViewById( R.id.coinGraphic );
 		if( GetAClueApp.getThisPlayer() != null ) {
 			int newCoinCount = (Integer)GetAClueApp.getThisPlayer().getTotalTokens();
 			tv.setVisibility( View.VISIBLE );
-			tv.setTypeface( tf );
+			tv.setTypeface( Typefaces.get( this, FONT ) );
 			iv.setVisibility( View.VISIBLE );
 			if( animate ) {
 				Util.doTokenChangeAnim( this, tv, Integer.toString( newCoinCount ) );
@@ -0,0 +1,23 @@
+package com.badbob.app.getaclue;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+
+import com.android.vending.billing.IMarketBillingService;
+
+/**
+ * Sends billing requests to the Android Market billing service.
+ */
+public class MarketBillingTransport implements BillingTransport {
+	
+	private final IMarketBillingService service;
+	
+	public MarketBillingTransport( IMarketBillingService service ) {
+		this.service = service;
+	}
+	
+	@Override
+	public Bundle sendBillingRequest( Bundle request ) throws RemoteException {
+		return service.sendBillingRequest( request );
+	}
+}
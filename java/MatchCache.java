@@ -0,0 +1,155 @@
+package com.badbob.app.getaclue;
+
+import java.util.HashMap;
+
+import android.os.SystemClock;
+
+/**
+ * The matches from the last match list refresh, by match id, along with the
+ * server revision each one was at. MainActivity uses it to open a match
+ * straight away when it was synced recently instead of reloading it first.
+ * 
+ * An entry counts as fresh for FRESH_MS after the refresh that put it there,
+ * unless a push has come in since saying something changed.
+ * 
+ * Matches from the list may not have everything loaded, so only ones loaded
+ * in full (clicked or prefetched) are ever handed back to be opened. They
+ * are kept over the list's copy by later refreshes as long as the revision
+ * is known and hasn't moved. Without revisions they are kept too, but stay
+ * fresh only for FRESH_MS after they were loaded, since there is nothing
+ * else to go on.
+ */
+public class MatchCache {
+	
+	// How long after a refresh we trust the matches without checking
+	public static final long FRESH_MS = 60 * 1000;
+	
+	// Revision for matches we don't know the revision of
+	public static final int UNKNOWN_REVISION = -1;
+	
+	private static class Entry {
+		final MatchTwoPlayer match;
+		final int revision;
+		final long syncedAt;
+		final boolean full;
+		
+		Entry( MatchTwoPlayer match, int revision, long syncedAt, boolean full ) {
+			this.match = match;
+			this.revision = revision;
+			this.syncedAt = syncedAt;
+			this.full = full;
+		}
+	}
+	
+	private static final MatchCache instance = new MatchCache();
+	
+	private final HashMap<Integer, Entry> entries = new HashMap<Integer, Entry>();
+	
+	// Set by a push, everything is suspect until the next refresh
+	private boolean stale = false;
+	
+	public static MatchCache get() {
+		return instance;
+	}
+	
+	/**
+	 * Replaces everything with the matches from a refresh.
+	 */
+	public synchronized void update( MatchListCache.Snapshot snapshot ) {
+		long now = SystemClock.elapsedRealtime();
+		HashMap<Integer, Entry> old = new HashMap<Integer, Entry>( entries );
+		entries.clear();
+		for( MatchTwoPlayer match : snapshot.activeMatches ) {
+			updateEntry( old.get( match.getId() ), match, revisionOf( snapshot, match ), now );
+		}
+		for( MatchTwoPlayer match : snapshot.finishedMatches ) {
+			updateEntry( old.get( match.getId() ), match, revisionOf( snapshot, match ), now );
+		}
+		stale = false;
+	}
+	
+	/**
+	 * Puts in a match that was just loaded in full from the server. Ignored
+	 * if a refresh since has seen a newer revision, e.g. a prefetch that
+	 * took a while.
+	 */
+	public synchronized void put( MatchTwoPlayer match, int revision ) {
+		Entry entry = entries.get( match.getId() );
+		if( entry != null && revision != UNKNOWN_REVISION && entry.revision != UNKNOWN_REVISION && revision < entry.revision ) {
+			return;
+		}
+		entries.put( match.getId(), new Entry( match, revision, SystemClock.elapsedRealtime(), true ) );
+	}
+	
+	/**
+	 * @return true if we already have this revision of the match loaded in
+	 *         full
+	 */
+	public synchronized boolean hasFull( int matchId, int revision ) {
+		Entry entry = entries.get( matchId );
+		return entry != null && entry.full && revision != UNKNOWN_REVISION && entry.revision == revision;
+	}
+	
+	/**
+	 * @return The match if we have this revision of it loaded in full,
+	 *         otherwise null
+	 */
+	public synchronized MatchTwoPlayer getFull( int matchId, int revision ) {
+		Entry entry = entries.get( matchId );
+		if( entry == null || !entry.full || revision == UNKNOWN_REVISION || entry.revision != revision ) {
+			return null;
+		}
+		return entry.match;
+	}
+	
+	/**
+	 * Goes by when the match was synced alone, the revision doesn't come
+	 * into it. Whoever opens it should still check it in the background.
+	 * 
+	 * @return The match if we have it loaded in full and it was synced
+	 *         recently enough to open without checking first, otherwise null
+	 */
+	public synchronized MatchTwoPlayer getFresh( int matchId ) {
+		Entry entry = entries.get( matchId );
+		if( entry == null || !entry.full || stale || SystemClock.elapsedRealtime() - entry.syncedAt > FRESH_MS ) {
+			return null;
+		}
+		return entry.match;
+	}
+	
+	/**
+	 * Called when a push says something changed on the server.
+	 */
+	public synchronized void markStale() {
+		stale = true;
+	}
+	
+	public synchronized void remove( int matchId ) {
+		entries.remove( matchId );
+	}
+	
+	public synchronized void clear() {
+		entries.clear();
+		stale = false;
+	}
+	
+	private void updateEntry( Entry old, MatchTwoPlayer match, int revision, long now ) {
+		if( old != null && old.full && revision != UNKNOWN_REVISION && old.revision == revision ) {
+			// Nothing has changed, keep the full one
+			entries.put( match.getId(), new Entry( old.match, revision, now, true ) );
+		}
+		else if( old != null && old.full && revision == UNKNOWN_REVISION && old.revision == UNKNOWN_REVISION ) {
+			// No telling whether it changed, so it keeps the time it was loaded
+			// and getFresh() goes by that
+			entries.put( match.getId(), old );
+		}
+		else {
+			entries.put( match.getId(), new Entry( match, revision, now, false ) );
+		}
+	}
+	
+	private static int revisionOf( MatchListCache.Snapshot snapshot, MatchTwoPlayer match ) {
+		Integer revision = snapshot.revisions.get( match.getId() );
+		return revision != null ? revision.intValue() : UNKNOWN_REVISION;
+	}
+}
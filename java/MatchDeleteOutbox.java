@@ -0,0 +1,465 @@
+package com.badbob.app.getaclue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Match deletes that haven't made it to the server yet. MainActivity takes
+ * a deleted match out of the list straight away and leaves it here; a
+ * background thread sends the deletes in order and retries ones that fail
+ * with an IOException, backing off from INITIAL_BACKOFF_MS up to
+ * MAX_BACKOFF_MS, until MAX_ATTEMPTS.
+ * 
+ * The outbox is written to disk (temp file and rename, like MatchListCache)
+ * every time it changes so a delete isn't lost if the process dies before
+ * the server has it. What was left last time is read back in on the
+ * background thread, so get() is cheap to call from onCreate(). Nothing is sent until retryNow() or delete() is called,
+ * so deletes left over from last time wait until we are logged in.
+ * 
+ * Until the server confirms a delete, refreshes can still bring the match
+ * back, so they have to go through filter() before being shown. On the
+ * main thread use the filter() that takes a callback, it never waits.
+ */
+public class MatchDeleteOutbox {
+	
+	private static final String LOG_TAG = "GetAClue::MatchDeleteOutbox";
+	
+	private static final String FILE_NAME = "delete_outbox";
+	
+	// Bump this if PendingDelete changes
+	private static final int VERSION = 1;
+	
+	private static final long INITIAL_BACKOFF_MS = 5 * 1000;
+	private static final long MAX_BACKOFF_MS = 10 * 60 * 1000;
+	private static final int MAX_ATTEMPTS = 20;
+	
+	public interface Listener {
+		/**
+		 * The server has deleted the match. Called on the main thread.
+		 */
+		void onDeleteConfirmed( MatchTwoPlayer match );
+		
+		/**
+		 * The server wouldn't delete the match or we gave up trying. It is no
+		 * longer pending and should go back in the list. Called on the main
+		 * thread.
+		 */
+		void onDeleteFailed( MatchTwoPlayer match, Exception e );
+	}
+	
+	public interface FilterCallback {
+		/**
+		 * Called on the main thread.
+		 */
+		void onFiltered( MatchListCache.Snapshot snapshot );
+	}
+	
+	private static class PendingDelete implements Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		final MatchTwoPlayer match;
+		int attempts = 0;
+		
+		PendingDelete( MatchTwoPlayer match ) {
+			this.match = match;
+		}
+	}
+	
+	private static MatchDeleteOutbox instance = null;
+	
+	private final File file;
+	private final Handler worker;
+	private final Handler main = new Handler( Looper.getMainLooper() );
+	private final Random random = new Random();
+	
+	// Oldest first. Guarded by this.
+	private final ArrayList<PendingDelete> pending = new ArrayList<PendingDelete>();
+	
+	// Counted down once the deletes from last time have been read in
+	private final CountDownLatch loaded = new CountDownLatch( 1 );
+	
+	// Filters waiting for that. Guarded by this.
+	private final ArrayList<Runnable> waitingForLoad = new ArrayList<Runnable>();
+	
+	// Set by clear() so the deletes from last time aren't read in after it.
+	// Guarded by this.
+	private boolean discardSaved = false;
+	
+	private volatile Listener listener = null;
+	
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+	
+	/**
+	 * The outbox outlives any one activity so it is one per process.
+	 */
+	public static synchronized MatchDeleteOutbox get( Context context ) {
+		if( instance == null ) {
+			instance = new MatchDeleteOutbox( context.getApplicationContext() );
+		}
+		return instance;
+	}
+	
+	private MatchDeleteOutbox( Context context ) {
+		file = new File( context.getFilesDir(), FILE_NAME );
+		
+		HandlerThread thread = new HandlerThread( "MatchDeleteOutbox", Process.THREAD_PRIORITY_BACKGROUND );
+		thread.start();
+		worker = new Handler( thread.getLooper() );
+		
+		// First thing on the worker so everything else posted there sees it
+		worker.post( new Runnable() {
+			@Override
+			public void run() {
+				loadSaved();
+			}
+		} );
+	}
+	
+	public void setListener( Listener listener ) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * Clears the listener if it is still this one, e.g. from onDestroy().
+	 */
+	public void removeListener( Listener listener ) {
+		if( this.listener == listener ) {
+			this.listener = null;
+		}
+	}
+	
+	/**
+	 * Queues up the delete and sends it as soon as everything before it has
+	 * gone.
+	 */
+	public void delete( MatchTwoPlayer match ) {
+		synchronized( this ) {
+			for( PendingDelete item : pending ) {
+				if( item.match.getId() == match.getId() ) {
+					return;
+				}
+			}
+			pending.add( new PendingDelete( match ) );
+		}
+		
+		worker.post( new Runnable() {
+			@Override
+			public void run() {
+				save();
+				drain();
+			}
+		} );
+	}
+	
+	/**
+	 * Sends whatever is pending now instead of waiting out the backoff, e.g.
+	 * once a refresh shows the server can be reached.
+	 */
+	public void retryNow() {
+		if( hasPending() || loaded.getCount() > 0 ) {
+			worker.removeCallbacks( drain );
+			worker.post( drain );
+		}
+	}
+	
+	public synchronized boolean hasPending() {
+		return !pending.isEmpty();
+	}
+	
+	/**
+	 * Waits for the deletes from last time to be read in if they haven't
+	 * been yet. That is done long before a refresh can come back from the
+	 * server, so in practice it doesn't wait, but it can so keep it off the
+	 * main thread.
+	 * 
+	 * @return The snapshot without any match that is waiting to be deleted,
+	 *         or snapshot itself if none of them are in it
+	 */
+	public MatchListCache.Snapshot filter( MatchListCache.Snapshot snapshot ) {
+		awaitLoaded();
+		HashSet<Integer> ids = new HashSet<Integer>();
+		synchronized( this ) {
+			for( PendingDelete item : pending ) {
+				ids.add( item.match.getId() );
+			}
+		}
+		return ids.isEmpty() ? snapshot : snapshot.without( ids );
+	}
+	
+	/**
+	 * Like filter() but never waits. Once the deletes from last time are in,
+	 * which is normally already, the filtered snapshot is posted back to the
+	 * main thread.
+	 */
+	public void filter( final MatchListCache.Snapshot snapshot, final FilterCallback callback ) {
+		Runnable filter = new Runnable() {
+			@Override
+			public void run() {
+				final MatchListCache.Snapshot filtered = filter( snapshot );
+				main.post( new Runnable() {
+					@Override
+					public void run() {
+						callback.onFiltered( filtered );
+					}
+				} );
+			}
+		};
+		
+		synchronized( this ) {
+			if( loaded.getCount() > 0 ) {
+				waitingForLoad.add( filter );
+				return;
+			}
+		}
+		filter.run();
+	}
+	
+	/**
+	 * Drops everything without sending it, e.g. on logout.
+	 */
+	public void clear() {
+		synchronized( this ) {
+			pending.clear();
+			discardSaved = true;
+		}
+		
+		worker.post( new Runnable() {
+			@Override
+			public void run() {
+				worker.removeCallbacks( drain );
+				file.delete();
+			}
+		} );
+	}
+	
+	/**
+	 * Runs on the worker thread. Sends the pending deletes in order until
+	 * they are all done or one can't get through.
+	 */
+	private void drain() {
+		worker.removeCallbacks( drain );
+		
+		while( true ) {
+			PendingDelete item;
+			synchronized( this ) {
+				if( pending.isEmpty() ) {
+					return;
+				}
+				item = pending.get( 0 );
+			}
+			
+			try {
+				WebServiceAdapter wsa = GetAClueApp.getWSAdapter();
+				wsa.deleteMatch( item.match );
+				finish( item, null );
+			}
+			catch( IOException e ) {
+				int attempts;
+				synchronized( this ) {
+					attempts = ++item.attempts;
+				}
+				if( attempts >= MAX_ATTEMPTS ) {
+					Log.w( LOG_TAG, "Giving up on deleting match " + item.match.getId() );
+					finish( item, e );
+					continue;
+				}
+				
+				save();
+				long delay = backoff( attempts );
+				Log.w( LOG_TAG, "Could not delete match " + item.match.getId() + ", trying again in " + delay + "ms: " + e.getMessage() );
+				worker.postDelayed( drain, delay );
+				return;
+			}
+			catch( WebServiceException e ) {
+				// The server said no, trying again won't change that
+				finish( item, e );
+			}
+			catch( Exception e ) {
+				Log.e( LOG_TAG, "Unknown exception" );
+				Log.e( LOG_TAG, Log.getStackTraceString( e ) );
+				finish( item, e );
+			}
+		}
+	}
+	
+	/**
+	 * Takes the delete out of the outbox and tells the listener how it went.
+	 * 
+	 * @param e null if it worked
+	 */
+	private void finish( PendingDelete item, final Exception e ) {
+		synchronized( this ) {
+			if( !pending.remove( item ) ) {
+				// Cleared in the meantime
+				return;
+			}
+		}
+		save();
+		
+		final MatchTwoPlayer match = item.match;
+		main.post( new Runnable() {
+			@Override
+			public void run() {
+				Listener listener = MatchDeleteOutbox.this.listener;
+				if( listener == null ) {
+					return;
+				}
+				if( e == null ) {
+					listener.onDeleteConfirmed( match );
+				}
+				else {
+					listener.onDeleteFailed( match, e );
+				}
+			}
+		} );
+	}
+	
+	private long backoff( int attempts ) {
+		long delay = INITIAL_BACKOFF_MS << Math.min( attempts - 1, 16 );
+		delay = Math.min( delay, MAX_BACKOFF_MS );
+		
+		// So a lot of phones coming back online don't all retry together
+		return delay + random.nextInt( (int)( delay / 4 ) + 1 );
+	}
+	
+	/**
+	 * Runs on the worker thread. Puts the deletes from last time ahead of
+	 * any made since get().
+	 */
+	private void loadSaved() {
+		ArrayList<PendingDelete> saved = load();
+		synchronized( this ) {
+			if( !discardSaved && !saved.isEmpty() ) {
+				Log.i( LOG_TAG, saved.size() + " delete(s) left over from last time" );
+				HashSet<Integer> ids = new HashSet<Integer>();
+				for( PendingDelete item : saved ) {
+					ids.add( item.match.getId() );
+				}
+				for( PendingDelete item : pending ) {
+					if( ids.add( item.match.getId() ) ) {
+						saved.add( item );
+					}
+				}
+				pending.clear();
+				pending.addAll( saved );
+			}
+		}
+		
+		ArrayList<Runnable> waiting;
+		synchronized( this ) {
+			loaded.countDown();
+			waiting = new ArrayList<Runnable>( waitingForLoad );
+			waitingForLoad.clear();
+		}
+		for( Runnable filter : waiting ) {
+			filter.run();
+		}
+	}
+	
+	private void awaitLoaded() {
+		try {
+			loaded.await();
+		}
+		catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	@SuppressWarnings( "unchecked" )
+	private ArrayList<PendingDelete> load() {
+		if( !file.exists() ) {
+			return new ArrayList<PendingDelete>();
+		}
+		
+		ObjectInputStream in = null;
+		try {
+			in = new ObjectInputStream( new FileInputStream( file ) );
+			if( in.readInt() == VERSION ) {
+				return (ArrayList<PendingDelete>)in.readObject();
+			}
+		}
+		catch( Exception e ) {
+			Log.w( LOG_TAG, "Could not read the delete outbox: " + e.getMessage() );
+		}
+		finally {
+			close( in );
+		}
+		
+		file.delete();
+		return new ArrayList<PendingDelete>();
+	}
+	
+	/**
+	 * Runs on the worker thread.
+	 */
+	private void save() {
+		byte[] bytes;
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream( buf );
+			out.writeInt( VERSION );
+			synchronized( this ) {
+				out.writeObject( new ArrayList<PendingDelete>( pending ) );
+			}
+			out.close();
+			bytes = buf.toByteArray();
+		}
+		catch( IOException e ) {
+			Log.w( LOG_TAG, "Could not serialize the delete outbox", e );
+			return;
+		}
+		
+		File tmp = new File( file.getPath() + ".tmp" );
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream( tmp );
+			out.write( bytes );
+			out.getFD().sync();
+			out.close();
+			out = null;
+			
+			if( !tmp.renameTo( file ) ) {
+				Log.w( LOG_TAG, "Could not rename " + tmp );
+			}
+		}
+		catch( IOException e ) {
+			Log.w( LOG_TAG, "Could not write the delete outbox", e );
+		}
+		finally {
+			close( out );
+		}
+	}
+	
+	private static void close( Closeable stream ) {
+		if( stream != null ) {
+			try {
+				stream.close();
+			}
+			catch( IOException e ) {
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package com.badbob.app.getaclue;
+
+import java.util.List;
+
+import android.content.Intent;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Compares handing a match to MatchActivity the old way, the whole
+ * MatchTwoPlayer serialized into the Intent, against MatchRegistry's id and
+ * version. For each match it measures what a startActivity() round trip
+ * costs: writing the Intent to a Parcel, the size of the marshalled bytes
+ * (what goes through the binder) and reading the match back out on the
+ * other side.
+ * 
+ * Only meant for debug builds. Call run() from a background thread with
+ * some real matches, the bigger their histories the better, and watch the
+ * log.
+ */
+public class MatchHandoffBenchmark {
+	
+	private static final String TAG = "MatchHandoffBenchmark";
+	
+	private static final int WARMUP_ITERATIONS = 20;
+	
+	public static class Result {
+		public final String name;
+		public final int matchId;
+		public final int iterations;
+		public final int parcelBytes;
+		public final long elapsedMs;
+		
+		Result( String name, int matchId, int iterations, int parcelBytes, long elapsedMs ) {
+			this.name = name;
+			this.matchId = matchId;
+			this.iterations = iterations;
+			this.parcelBytes = parcelBytes;
+			this.elapsedMs = elapsedMs;
+		}
+		
+		@Override
+		public String toString() {
+			return name + " match " + matchId + ": " + parcelBytes + " bytes, "
+					+ ( (float)elapsedMs * 1000 / iterations ) + "us per handoff, "
+					+ elapsedMs + "ms for " + iterations;
+		}
+	}
+	
+	private interface Handoff {
+		public Intent send( MatchTwoPlayer match );
+		public MatchTwoPlayer receive( Intent intent );
+	}
+	
+	public static Result[] run( List<MatchTwoPlayer> matches, int iterations ) {
+		// Its own so the app's registry doesn't fill up with these
+		final MatchRegistry matchRegistry = new MatchRegistry();
+		
+		Handoff serialized = new Handoff() {
+			@Override
+			public Intent send( MatchTwoPlayer match ) {
+				Intent intent = new Intent();
+				intent.putExtra( MatchRegistry.EXTRA_MATCH, match );
+				return intent;
+			}
+			
+			@Override
+			public MatchTwoPlayer receive( Intent intent ) {
+				return (MatchTwoPlayer)intent.getSerializableExtra( MatchRegistry.EXTRA_MATCH );
+			}
+		};
+		
+		Handoff registry = new Handoff() {
+			@Override
+			public Intent send( MatchTwoPlayer match ) {
+				Intent intent = new Intent();
+				matchRegistry.putMatchId( intent, match );
+				return intent;
+			}
+			
+			@Override
+			public MatchTwoPlayer receive( Intent intent ) {
+				return matchRegistry.getMatch( intent );
+			}
+		};
+		
+		Result[] results = new Result[ matches.size() * 2 ];
+		for( int i = 0; i < matches.size(); i++ ) {
+			MatchTwoPlayer match = matches.get( i );
+			results[ i * 2 ] = measure( "serialized", serialized, match, iterations );
+			results[ i * 2 + 1 ] = measure( "registry", registry, match, iterations );
+			Log.i( TAG, results[ i * 2 ].toString() );
+			Log.i( TAG, results[ i * 2 + 1 ].toString() );
+		}
+		
+		return results;
+	}
+	
+	private static Result measure( String name, Handoff handoff, MatchTwoPlayer match, int iterations ) {
+		for( int i = 0; i < WARMUP_ITERATIONS; i++ ) {
+			handoffOnce( handoff, match );
+		}
+		
+		int bytes = 0;
+		long start = SystemClock.elapsedRealtime();
+		for( int i = 0; i < iterations; i++ ) {
+			bytes = handoffOnce( handoff, match );
+		}
+		long elapsed = SystemClock.elapsedRealtime() - start;
+		
+		return new Result( name, match.getId(), iterations, bytes, elapsed );
+	}
+	
+	/**
+	 * @return The size of the marshalled Intent
+	 */
+	private static int handoffOnce( Handoff handoff, MatchTwoPlayer match ) {
+		Intent sent = handoff.send( match );
+		
+		Parcel out = Parcel.obtain();
+		sent.writeToParcel( out, 0 );
+		byte[] data = out.marshall();
+		out.recycle();
+		
+		Parcel in = Parcel.obtain();
+		in.unmarshall( data, 0, data.length );
+		in.setDataPosition( 0 );
+		Intent received = Intent.CREATOR.createFromParcel( in );
+		in.recycle();
+		
+		received.setExtrasClassLoader( MatchHandoffBenchmark.class.getClassLoader() );
+		if( handoff.receive( received ) == null ) {
+			throw new IllegalStateException( "Match didn't make it across" );
+		}
+		
+		return data.length;
+	}
+}
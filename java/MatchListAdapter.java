@@ -0,0 +1,263 @@
+package com.badbob.app.getaclue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.app.Activity;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Backs the match list ListView. There are three kinds of rows, headers,
+ * active matches and finished matches, and ListView hands back rows of the
+ * same kind that have scrolled off so they can be pointed at another match
+ * instead of making a new item view for every match in the list.
+ */
+public class MatchListAdapter extends BaseAdapter {
+	
+	private static final String LOG_TAG = "GetAClue::MatchListAdapter";
+	
+	private static final int TYPE_HEADER = 0;
+	private static final int TYPE_ACTIVE = 1;
+	private static final int TYPE_FINISHED = 2;
+	private static final int TYPE_COUNT = 3;
+	
+	private static class Row {
+		final int type;
+		final int titleId;
+		MatchTwoPlayer match;
+		
+		Row( int type, int titleId, MatchTwoPlayer match ) {
+			this.type = type;
+			this.titleId = titleId;
+			this.match = match;
+		}
+	}
+	
+	private final Activity activity;
+	
+	private final ArrayList<Row> rows = new ArrayList<Row>();
+	private MatchListCache.Snapshot snapshot = new MatchListCache.Snapshot();
+	private byte[] snapshotBytes = null;
+	
+	// Every item view made so far, so they can all be told about onDestroy
+	// and not just the ones that happen to be on screen
+	private final ArrayList<MatchListItemBase> itemViews = new ArrayList<MatchListItemBase>();
+	
+	public MatchListAdapter( Activity activity ) {
+		this.activity = activity;
+	}
+	
+	/**
+	 * A refreshed list that has been serialized, and compared with what was
+	 * showing, on a background thread. See prepare().
+	 */
+	public static class Update {
+		public final MatchListCache.Snapshot snapshot;
+		final byte[] bytes;
+		final byte[] comparedWith;
+		final boolean unchanged;
+		
+		Update( MatchListCache.Snapshot snapshot, byte[] bytes, byte[] comparedWith ) {
+			this.snapshot = snapshot;
+			this.bytes = bytes;
+			this.comparedWith = comparedWith;
+			unchanged = bytes != null && comparedWith != null && Arrays.equals( bytes, comparedWith );
+		}
+	}
+	
+	/**
+	 * Serializes a refreshed list and compares it with what was showing.
+	 * That's slow for a long list so do it on a background thread. A full
+	 * fetch has no revisions so this is the only way to tell it changed
+	 * nothing.
+	 * 
+	 * @param shownBytes getSnapshotBytes() from when the refresh started
+	 */
+	public static Update prepare( MatchListCache.Snapshot snapshot, byte[] shownBytes ) {
+		return new Update( snapshot, MatchListCache.toBytes( snapshot ), shownBytes );
+	}
+	
+	/**
+	 * Replaces the matches in the list with a prepared refresh. Nothing
+	 * happens if they are the same as what is already there.
+	 * 
+	 * @return true if the list changed
+	 */
+	public boolean setSnapshot( Update update ) {
+		// Only good if nothing else was shown since it was compared
+		if( update.unchanged && update.comparedWith == snapshotBytes ) {
+			return false;
+		}
+		
+		MatchListDiff diff = MatchListDiff.compute( this.snapshot, update.snapshot );
+		if( !diff.hasChanges() ) {
+			return false;
+		}
+		show( update.snapshot, update.bytes, diff );
+		return true;
+	}
+	
+	/**
+	 * Replaces the matches in the list. Nothing happens if they are the same
+	 * as what is already there. MatchListDiff decides that from the matches,
+	 * and the list is only serialized when it saw a change.
+	 * 
+	 * @return true if the list changed
+	 */
+	public boolean setSnapshot( MatchListCache.Snapshot snapshot ) {
+		MatchListDiff diff = MatchListDiff.compute( this.snapshot, snapshot );
+		if( !diff.hasChanges() ) {
+			return false;
+		}
+		show( snapshot, MatchListCache.toBytes( snapshot ), diff );
+		return true;
+	}
+	
+	private void show( MatchListCache.Snapshot snapshot, byte[] bytes, MatchListDiff diff ) {
+		Log.i( LOG_TAG, "Match list: " + diff );
+		
+		this.snapshot = snapshot;
+		snapshotBytes = bytes;
+		
+		rows.clear();
+		addSection( R.string.active_matches_header, snapshot.activeMatches, TYPE_ACTIVE );
+		addSection( R.string.finished_matches_header, snapshot.finishedMatches, TYPE_FINISHED );
+		notifyDataSetChanged();
+	}
+	
+	public MatchListCache.Snapshot getSnapshot() {
+		return snapshot;
+	}
+	
+	/**
+	 * @return The serialized form of getSnapshot(), or null if it couldn't be
+	 *         serialized
+	 */
+	public byte[] getSnapshotBytes() {
+		return snapshotBytes;
+	}
+	
+	/**
+	 * Swaps in a newer copy of one of the matches, e.g. after it was
+	 * reloaded when clicked, so a recycled row doesn't go back to the old one.
+	 * getSnapshot() is handed to background threads (the cache, the
+	 * prefetcher, a delta refresh), so it is never changed, a copy with the
+	 * new match replaces it.
+	 */
+	public void updateMatch( MatchTwoPlayer match ) {
+		for( Row row : rows ) {
+			if( row.match != null && row.match.getId() == match.getId() ) {
+				row.match = match;
+			}
+		}
+		MatchListCache.Snapshot updated = snapshot.copy();
+		replace( updated.activeMatches, match );
+		replace( updated.finishedMatches, match );
+		snapshot = updated;
+		snapshotBytes = null;
+	}
+	
+	public void onDestroy() {
+		for( MatchListItemBase item : itemViews ) {
+			item.onDestroy();
+		}
+		itemViews.clear();
+	}
+	
+	@Override
+	public int getCount() {
+		return rows.size();
+	}
+	
+	@Override
+	public Object getItem( int position ) {
+		return rows.get( position ).match;
+	}
+	
+	@Override
+	public long getItemId( int position ) {
+		Row row = rows.get( position );
+		if( row.type == TYPE_HEADER ) {
+			// Keep clear of the match ids
+			return -1 - row.titleId;
+		}
+		return row.match.getId();
+	}
+	
+	@Override
+	public boolean hasStableIds() {
+		return true;
+	}
+	
+	@Override
+	public int getViewTypeCount() {
+		return TYPE_COUNT;
+	}
+	
+	@Override
+	public int getItemViewType( int position ) {
+		return rows.get( position ).type;
+	}
+	
+	@Override
+	public boolean areAllItemsEnabled() {
+		return false;
+	}
+	
+	@Override
+	public boolean isEnabled( int position ) {
+		return rows.get( position ).type != TYPE_HEADER;
+	}
+	
+	@Override
+	public View getView( int position, View convertView, ViewGroup parent ) {
+		Row row = rows.get( position );
+		
+		if( row.type == TYPE_HEADER ) {
+			TextView header = (TextView)convertView;
+			if( header == null ) {
+				header = MatchListBuilder.newHeader( activity, parent, row.titleId );
+			}
+			else {
+				header.setText( row.titleId );
+			}
+			return header;
+		}
+		
+		MatchListItemBase item = (MatchListItemBase)convertView;
+		if( item == null ) {
+			item = MatchListBuilder.newItem( activity, row.match, row.type == TYPE_FINISHED );
+			itemViews.add( item );
+		}
+		else if( item.getMatch() != row.match ) {
+			// A recycled row, point it at this match
+			item.setMatch( row.match );
+			item.refresh();
+		}
+		return item;
+	}
+	
+	private void addSection( int titleId, List<MatchTwoPlayer> matches, int type ) {
+		if( matches.isEmpty() ) {
+			return;
+		}
+		
+		rows.add( new Row( TYPE_HEADER, titleId, null ) );
+		for( MatchTwoPlayer match : matches ) {
+			rows.add( new Row( type, 0, match ) );
+		}
+	}
+	
+	private static void replace( List<MatchTwoPlayer> matches, MatchTwoPlayer match ) {
+		for( int i = 0; i < matches.size(); i++ ) {
+			if( matches.get( i ).getId() == match.getId() ) {
+				matches.set( i, match );
+			}
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package com.badbob.app.getaclue;
+
+import android.app.Activity;
+import android.view.LayoutInflater;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+/**
+ * Makes the same header and item views MatchListTask does, but for matches
+ * we already have instead of ones from the server. Used by MatchListAdapter.
+ */
+public class MatchListBuilder {
+	
+	public static TextView newHeader( Activity activity, ViewGroup parent, int titleId ) {
+		LayoutInflater inflater = activity.getLayoutInflater();
+		TextView header = (TextView)inflater.inflate( R.layout.match_list_header, parent, false );
+		header.setText( titleId );
+		return header;
+	}
+	
+	public static MatchListItemBase newItem( Activity activity, MatchTwoPlayer match, boolean finished ) {
+		if( finished ) {
+			return new MatchListItemFinished( activity, match );
+		}
+		return new MatchListItemActive( activity, match );
+	}
+}
@@ -0,0 +1,245 @@
+package com.badbob.app.getaclue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+
+/**
+ * Keeps the last match list we got from the server on disk so MainActivity
+ * can show it straight away on a cold start while MatchListTask goes and
+ * gets the real one.
+ * 
+ * Snapshots are serialized on the caller's thread and the bytes are written
+ * on a background thread to a temp file which is then renamed over the old
+ * one, so a crash halfway through can't leave a broken snapshot behind.
+ */
+public class MatchListCache {
+	
+	private static final String LOG_TAG = "GetAClue::MatchListCache";
+	
+	private static final String FILE_NAME = "match_list.cache";
+	
+	// Bump this if Snapshot changes
+	private static final int VERSION = 2;
+	
+	private static final ExecutorService writer = Executors.newSingleThreadExecutor();
+	
+	/**
+	 * The matches as they were last shown in the list.
+	 */
+	public static class Snapshot implements Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		public final ArrayList<MatchTwoPlayer> activeMatches = new ArrayList<MatchTwoPlayer>();
+		public final ArrayList<MatchTwoPlayer> finishedMatches = new ArrayList<MatchTwoPlayer>();
+		
+		// From the last delta sync, see MatchListDeltaClient. Empty after a
+		// full fetch.
+		public String etag = null;
+		public final HashMap<Integer, Integer> revisions = new HashMap<Integer, Integer>();
+		
+		public boolean isEmpty() {
+			return activeMatches.isEmpty() && finishedMatches.isEmpty();
+		}
+		
+		public boolean contains( int matchId ) {
+			for( MatchTwoPlayer match : activeMatches ) {
+				if( match.getId() == matchId ) {
+					return true;
+				}
+			}
+			for( MatchTwoPlayer match : finishedMatches ) {
+				if( match.getId() == matchId ) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		/**
+		 * @return A copy of this snapshot. The matches themselves are shared.
+		 */
+		public Snapshot copy() {
+			Snapshot copy = new Snapshot();
+			copy.activeMatches.addAll( activeMatches );
+			copy.finishedMatches.addAll( finishedMatches );
+			copy.etag = etag;
+			copy.revisions.putAll( revisions );
+			return copy;
+		}
+		
+		/**
+		 * @return A copy of this snapshot without these matches. If any were
+		 *         taken out the etag is dropped, the list no longer matches
+		 *         the server's and a 304 would keep it that way.
+		 */
+		public Snapshot without( Collection<Integer> matchIds ) {
+			Snapshot copy = new Snapshot();
+			boolean removed = false;
+			for( MatchTwoPlayer match : activeMatches ) {
+				if( !matchIds.contains( match.getId() ) ) {
+					copy.activeMatches.add( match );
+				}
+				else {
+					removed = true;
+				}
+			}
+			for( MatchTwoPlayer match : finishedMatches ) {
+				if( !matchIds.contains( match.getId() ) ) {
+					copy.finishedMatches.add( match );
+				}
+				else {
+					removed = true;
+				}
+			}
+			copy.etag = removed ? null : etag;
+			copy.revisions.putAll( revisions );
+			copy.revisions.keySet().removeAll( matchIds );
+			return copy;
+		}
+		
+		/**
+		 * Pulls the matches out of a list built by an older MatchListTask.
+		 * Headers and anything else that isn't a match item are skipped.
+		 */
+		public static Snapshot fromView( View matchListView ) {
+			Snapshot snapshot = new Snapshot();
+			ViewGroup group = (ViewGroup)matchListView;
+			for( int i = 0; i < group.getChildCount(); i++ ) {
+				View child = group.getChildAt( i );
+				if( child instanceof MatchListItemFinished ) {
+					snapshot.finishedMatches.add( ( (MatchListItemBase)child ).getMatch() );
+				}
+				else if( child instanceof MatchListItemBase ) {
+					snapshot.activeMatches.add( ( (MatchListItemBase)child ).getMatch() );
+				}
+			}
+			return snapshot;
+		}
+	}
+	
+	private final File file;
+	
+	public MatchListCache( Context context ) {
+		file = new File( context.getFilesDir(), FILE_NAME );
+	}
+	
+	/**
+	 * @return The saved snapshot or null if there isn't one or it can't be
+	 *         read (a different version, a corrupt file, etc.)
+	 */
+	public Snapshot load() {
+		if( !file.exists() ) {
+			return null;
+		}
+		
+		ObjectInputStream in = null;
+		try {
+			in = new ObjectInputStream( new FileInputStream( file ) );
+			if( in.readInt() != VERSION ) {
+				return null;
+			}
+			return (Snapshot)in.readObject();
+		}
+		catch( Exception e ) {
+			// Most likely MatchTwoPlayer changed, just start over
+			Log.w( LOG_TAG, "Could not read the match list cache: " + e.getMessage() );
+			file.delete();
+			return null;
+		}
+		finally {
+			close( in );
+		}
+	}
+	
+	/**
+	 * Writes the snapshot in the background. The bytes must have come from
+	 * toBytes().
+	 */
+	public void save( final byte[] bytes ) {
+		writer.execute( new Runnable() {
+			@Override
+			public void run() {
+				File tmp = new File( file.getPath() + ".tmp" );
+				FileOutputStream out = null;
+				try {
+					out = new FileOutputStream( tmp );
+					out.write( bytes );
+					out.getFD().sync();
+					out.close();
+					out = null;
+					
+					if( !tmp.renameTo( file ) ) {
+						Log.w( LOG_TAG, "Could not rename " + tmp );
+					}
+				}
+				catch( IOException e ) {
+					Log.w( LOG_TAG, "Could not write the match list cache", e );
+				}
+				finally {
+					close( out );
+				}
+			}
+		} );
+	}
+	
+	/**
+	 * Removes the saved snapshot, e.g. on logout.
+	 */
+	public void clear() {
+		writer.execute( new Runnable() {
+			@Override
+			public void run() {
+				file.delete();
+			}
+		} );
+	}
+	
+	/**
+	 * Serializes the snapshot in the same format it is saved in. Done on the
+	 * caller's thread so the matches can't change while they are being
+	 * written out.
+	 * 
+	 * @return The bytes or null if the snapshot couldn't be serialized
+	 */
+	public static byte[] toBytes( Snapshot snapshot ) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream( bytes );
+			out.writeInt( VERSION );
+			out.writeObject( snapshot );
+			out.close();
+			return bytes.toByteArray();
+		}
+		catch( IOException e ) {
+			Log.w( LOG_TAG, "Could not serialize the match list", e );
+			return null;
+		}
+	}
+	
+	private static void close( Closeable stream ) {
+		if( stream != null ) {
+			try {
+				stream.close();
+			}
+			catch( IOException e ) {
+			}
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package com.badbob.app.getaclue;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Talks to the match list delta endpoint. Instead of every active and
+ * finished match like MatchListTask.COMBINED_TURN, the server only sends
+ * back the matches that changed since the last time.
+ * 
+ * The request is a POST with the list ETag from last time in If-None-Match
+ * and the revision we have of each match in the body:
+ * 
+ *     { "known": { "<matchId>": <rev>, ... } }
+ * 
+ * If nothing changed the answer is a 304. Otherwise it is:
+ * 
+ *     { "etag": "...",
+ *       "active": [ <matchId>, ... ],
+ *       "finished": [ <matchId>, ... ],
+ *       "changed": [ { "id": <matchId>, "rev": <rev>, "match": { ... } }, ... ],
+ *       "removed": [ <matchId>, ... ] }
+ * 
+ * active and finished are just the ids in the order they should be shown,
+ * changed has the full match for anything new or with a different revision
+ * than the one we sent, and removed is anything we sent that is gone.
+ * 
+ * The request goes out through a Transport. In the app that's
+ * WebServiceAdapter, so it carries the same session as every other call
+ * and the server knows whose list it is without being told. fetch() and
+ * parse() don't need Android, so the stub server in tools drives them on a
+ * desktop JVM with a plain HTTP Transport; merge() makes MatchTwoPlayers
+ * and only runs in the app.
+ */
+public class MatchListDeltaClient {
+	
+	public static final String PATH = "/matchlist/delta";
+	
+	/**
+	 * Sends the request for fetch().
+	 */
+	public interface Transport {
+		/**
+		 * POSTs a JSON body to the server as the logged in player.
+		 * 
+		 * @param path PATH
+		 * @param etag For If-None-Match, can be null
+		 * @param body
+		 * @return The status and body of the response
+		 * @throws IOException If the server couldn't be reached
+		 */
+		public Response post( String path, String etag, byte[] body ) throws IOException;
+	}
+	
+	public static class Response {
+		public final int status;
+		public final byte[] body;
+		
+		public Response( int status, byte[] body ) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+	
+	/**
+	 * The server answered with an error status rather than a delta.
+	 */
+	public static class HttpStatusException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		public final int status;
+		
+		public HttpStatusException( int status ) {
+			super( "HTTP " + status );
+			this.status = status;
+		}
+		
+		/**
+		 * @return true if the status means the server doesn't have the delta
+		 *         endpoint at all, as opposed to it failing this time
+		 */
+		public boolean isUnsupported() {
+			return status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_BAD_METHOD || status == HttpURLConnection.HTTP_NOT_IMPLEMENTED;
+		}
+	}
+	
+	/**
+	 * What came back from the server.
+	 */
+	public static class Delta {
+		public boolean notModified = false;
+		public String etag;
+		public final ArrayList<Integer> active = new ArrayList<Integer>();
+		public final ArrayList<Integer> finished = new ArrayList<Integer>();
+		public final LinkedHashMap<Integer, Integer> changedRevisions = new LinkedHashMap<Integer, Integer>();
+		public final HashMap<Integer, JSONObject> changedMatches = new HashMap<Integer, JSONObject>();
+		public final ArrayList<Integer> removed = new ArrayList<Integer>();
+		
+		// For measuring what the delta saves
+		public int payloadBytes = 0;
+		public long parseNanos = 0;
+		
+		@Override
+		public String toString() {
+			if( notModified ) {
+				return "Match list not modified";
+			}
+			return changedRevisions.size() + " changed, " + removed.size() + " removed, " + payloadBytes + " bytes, parsed in "
+					+ ( parseNanos / 1000 ) + "us";
+		}
+	}
+	
+	private final Transport transport;
+	
+	public MatchListDeltaClient( Transport transport ) {
+		this.transport = transport;
+	}
+	
+	/**
+	 * @param etag From the last delta or null
+	 * @param revisions Revision of each match we have, by match id
+	 * @return The delta, with notModified set if the server sent a 304
+	 * @throws IOException An HttpStatusException if the server sent back
+	 *         an error status
+	 * @throws JSONException
+	 */
+	public Delta fetch( String etag, Map<Integer, Integer> revisions ) throws IOException, JSONException {
+		JSONObject known = new JSONObject();
+		for( Map.Entry<Integer, Integer> entry : revisions.entrySet() ) {
+			known.put( String.valueOf( entry.getKey() ), entry.getValue().intValue() );
+		}
+		JSONObject body = new JSONObject();
+		body.put( "known", known );
+		byte[] bodyBytes = body.toString().getBytes( "UTF-8" );
+		
+		Response response = transport.post( PATH, etag, bodyBytes );
+		if( response.status == HttpURLConnection.HTTP_NOT_MODIFIED ) {
+			Delta delta = new Delta();
+			delta.notModified = true;
+			delta.etag = etag;
+			return delta;
+		}
+		if( response.status != HttpURLConnection.HTTP_OK ) {
+			throw new HttpStatusException( response.status );
+		}
+		return parse( response.body );
+	}
+	
+	/**
+	 * Parses a 200 response body.
+	 */
+	public static Delta parse( byte[] payload ) throws JSONException, IOException {
+		long start = System.nanoTime();
+		
+		Delta delta = new Delta();
+		JSONObject json = new JSONObject( new String( payload, "UTF-8" ) );
+		delta.etag = json.optString( "etag", null );
+		readIds( json.optJSONArray( "active" ), delta.active );
+		readIds( json.optJSONArray( "finished" ), delta.finished );
+		readIds( json.optJSONArray( "removed" ), delta.removed );
+		
+		JSONArray changed = json.optJSONArray( "changed" );
+		if( changed != null ) {
+			for( int i = 0; i < changed.length(); i++ ) {
+				JSONObject item = changed.getJSONObject( i );
+				int id = item.getInt( "id" );
+				delta.changedRevisions.put( id, item.getInt( "rev" ) );
+				delta.changedMatches.put( id, item.getJSONObject( "match" ) );
+			}
+		}
+		
+		delta.payloadBytes = payload.length;
+		delta.parseNanos = System.nanoTime() - start;
+		return delta;
+	}
+	
+	/**
+	 * Applies a delta to what we had. The old snapshot isn't changed.
+	 * 
+	 * @return A new snapshot, or old itself if the delta was a 304
+	 * @throws JSONException If a changed match can't be made from its JSON
+	 */
+	public static MatchListCache.Snapshot merge( MatchListCache.Snapshot old, Delta delta ) throws JSONException {
+		if( delta.notModified ) {
+			return old;
+		}
+		
+		HashMap<Integer, MatchTwoPlayer> matches = new HashMap<Integer, MatchTwoPlayer>();
+		for( MatchTwoPlayer match : old.activeMatches ) {
+			matches.put( match.getId(), match );
+		}
+		for( MatchTwoPlayer match : old.finishedMatches ) {
+			matches.put( match.getId(), match );
+		}
+		
+		MatchListCache.Snapshot merged = new MatchListCache.Snapshot();
+		merged.etag = delta.etag;
+		merged.revisions.putAll( old.revisions );
+		
+		for( Integer id : delta.removed ) {
+			matches.remove( id );
+			merged.revisions.remove( id );
+		}
+		for( Map.Entry<Integer, JSONObject> entry : delta.changedMatches.entrySet() ) {
+			matches.put( entry.getKey(), new MatchTwoPlayer( entry.getValue() ) );
+		}
+		merged.revisions.putAll( delta.changedRevisions );
+		
+		addInOrder( delta.active, matches, merged.activeMatches );
+		addInOrder( delta.finished, matches, merged.finishedMatches );
+		return merged;
+	}
+	
+	private static void addInOrder( ArrayList<Integer> ids, HashMap<Integer, MatchTwoPlayer> matches, ArrayList<MatchTwoPlayer> out ) {
+		for( Integer id : ids ) {
+			MatchTwoPlayer match = matches.get( id );
+			if( match != null ) {
+				out.add( match );
+			}
+		}
+	}
+	
+	private static void readIds( JSONArray array, ArrayList<Integer> out ) throws JSONException {
+		if( array != null ) {
+			for( int i = 0; i < array.length(); i++ ) {
+				out.add( array.getInt( i ) );
+			}
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package com.badbob.app.getaclue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Works out what a match list refresh changed from the matches alone, so
+ * MatchListAdapter can leave the list alone when nothing did. No rows are
+ * built and nothing is serialized to do it.
+ * 
+ * Matches are keyed by id within their section (active or finished). A
+ * match counts as updated when its server revision moved, or when there
+ * are no revisions to go on (a full fetch) and it is a different object.
+ * For those MatchListAdapter.prepare() compares the whole list's bytes on
+ * a background thread before it gets here, see unrevisioned.
+ * 
+ * Moves are the fewest matches that would have to be picked up and put
+ * back to get from the old order to the new, so a match inserted or
+ * removed above the others doesn't count them all as moved.
+ */
+public class MatchListDiff {
+	
+	public int inserts = 0;
+	public int removes = 0;
+	public int moves = 0;
+	public int updates = 0;
+	
+	// Some of the updates are only different objects, the matches may well
+	// be the same
+	public boolean unrevisioned = false;
+	
+	// The etag or revisions changed, so the list needs saving even if no
+	// match did
+	public boolean syncStateChanged = false;
+	
+	public boolean hasRowChanges() {
+		return inserts + removes + moves + updates > 0;
+	}
+	
+	public boolean hasChanges() {
+		return hasRowChanges() || syncStateChanged;
+	}
+	
+	@Override
+	public String toString() {
+		return inserts + " inserted, " + removes + " removed, " + moves + " moved, " + updates + " updated" + ( unrevisioned ? " (unrevisioned)" : "" );
+	}
+	
+	/**
+	 * @param shown The list that is on screen
+	 * @param fresh The list from a refresh
+	 */
+	public static MatchListDiff compute( MatchListCache.Snapshot shown, MatchListCache.Snapshot fresh ) {
+		MatchListDiff diff = new MatchListDiff();
+		diff.compareSection( shown, shown.activeMatches, fresh, fresh.activeMatches );
+		diff.compareSection( shown, shown.finishedMatches, fresh, fresh.finishedMatches );
+		
+		boolean sameEtag = shown.etag == null ? fresh.etag == null : shown.etag.equals( fresh.etag );
+		diff.syncStateChanged = !sameEtag || !shown.revisions.equals( fresh.revisions );
+		return diff;
+	}
+	
+	private void compareSection( MatchListCache.Snapshot shown, List<MatchTwoPlayer> oldMatches, MatchListCache.Snapshot fresh, List<MatchTwoPlayer> newMatches ) {
+		HashMap<Integer, Integer> gone = new HashMap<Integer, Integer>();
+		for( int i = 0; i < oldMatches.size(); i++ ) {
+			gone.put( oldMatches.get( i ).getId(), i );
+		}
+		
+		// The old positions of the matches in both, in their new order
+		int[] oldPositions = new int[ newMatches.size() ];
+		int kept = 0;
+		for( MatchTwoPlayer match : newMatches ) {
+			Integer oldPosition = gone.remove( match.getId() );
+			if( oldPosition == null ) {
+				inserts++;
+				continue;
+			}
+			
+			oldPositions[ kept++ ] = oldPosition.intValue();
+			if( isUpdated( shown, oldMatches.get( oldPosition.intValue() ), fresh, match ) ) {
+				updates++;
+			}
+		}
+		removes += gone.size();
+		
+		// The longest run still in their old order stayed put, the rest moved
+		moves += kept - longestInOrder( oldPositions, kept );
+	}
+	
+	/**
+	 * @return The length of the longest increasing subsequence of the first
+	 *         count values, which are all different
+	 */
+	private static int longestInOrder( int[] values, int count ) {
+		// Smallest last value of an increasing run of each length
+		int[] tails = new int[ count ];
+		int length = 0;
+		for( int i = 0; i < count; i++ ) {
+			int position = Arrays.binarySearch( tails, 0, length, values[ i ] );
+			if( position < 0 ) {
+				position = -position - 1;
+			}
+			tails[ position ] = values[ i ];
+			if( position == length ) {
+				length++;
+			}
+		}
+		return length;
+	}
+	
+	private boolean isUpdated( MatchListCache.Snapshot shown, MatchTwoPlayer old, MatchListCache.Snapshot fresh, MatchTwoPlayer match ) {
+		Integer oldRevision = shown.revisions.get( old.getId() );
+		Integer newRevision = fresh.revisions.get( match.getId() );
+		if( oldRevision != null && newRevision != null ) {
+			return !oldRevision.equals( newRevision );
+		}
+		
+		if( old != match ) {
+			unrevisioned = true;
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,182 @@
+package com.badbob.app.getaclue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Process;
+import android.util.Log;
+
+import com.badbob.util.Preloader;
+
+/**
+ * After a match list refresh, loads the matches where it is our turn in full
+ * in the background and puts them in MatchCache, so tapping one of them can
+ * open it without waiting on MatchTwoPlayer.loadFromId().
+ * 
+ * It is kept on a budget: at most MAX_CONCURRENT loads at once, at most
+ * MAX_PER_REFRESH matches per refresh, nothing if the battery is low and not
+ * charging or we are roaming, and nothing for a match we already have in
+ * full at the same revision. A new refresh drops whatever the last one
+ * queued that hasn't started yet.
+ * 
+ * Without delta sync the matches have no revisions, which is what the
+ * server sends today. Then it takes the first MAX_PER_REFRESH our-turn
+ * matches and skips only those MatchCache still has fresh, going by when
+ * they were synced. Those copies get replaced by the next refresh, but
+ * they are loaded right after this one so they are as current as the list.
+ * 
+ * Whenever anything is prefetched MatchActivity's window background is
+ * warmed through Preloader too, so opening the match doesn't decode it
+ * before the first draw.
+ */
+public class MatchPrefetcher {
+	
+	private static final String LOG_TAG = "GetAClue::MatchPrefetcher";
+	
+	private static final int MAX_CONCURRENT = 2;
+	private static final int MAX_PER_REFRESH = 5;
+	private static final int MIN_BATTERY_PERCENT = 20;
+	
+	private class PrefetchTask implements Runnable {
+		final int matchId;
+		final int revision;
+		
+		PrefetchTask( int matchId, int revision ) {
+			this.matchId = matchId;
+			this.revision = revision;
+		}
+		
+		@Override
+		public void run() {
+			Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+			try {
+				MatchTwoPlayer match = MatchTwoPlayer.loadFromId( matchId, true, true );
+				if( match != null ) {
+					MatchCache.get().put( match, revision );
+				}
+			}
+			catch( Exception e ) {
+				// Not a problem, it just gets loaded when it is clicked
+				Log.w( LOG_TAG, "Could not prefetch match " + matchId + ": " + e.getMessage() );
+			}
+			finally {
+				inFlight.remove( matchId );
+			}
+		}
+	}
+	
+	private final Context context;
+	private final ThreadPoolExecutor executor;
+	
+	// Queued or running, so the same match isn't asked for twice
+	private final Set<Integer> inFlight = Collections.synchronizedSet( new HashSet<Integer>() );
+	
+	public MatchPrefetcher( Context context ) {
+		this.context = context.getApplicationContext();
+		executor = new ThreadPoolExecutor( MAX_CONCURRENT, MAX_CONCURRENT, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>() );
+		executor.allowCoreThreadTimeOut( true );
+	}
+	
+	/**
+	 * Queues up the our-turn matches from a refresh. Call on the main thread.
+	 */
+	public void prefetch( MatchListCache.Snapshot snapshot ) {
+		cancel();
+		
+		if( !withinBudget() ) {
+			return;
+		}
+		
+		int queued = 0;
+		for( MatchTwoPlayer match : snapshot.activeMatches ) {
+			if( queued >= MAX_PER_REFRESH ) {
+				break;
+			}
+			if( !match.isThisPlayersTurn() ) {
+				continue;
+			}
+			
+			Integer revision = snapshot.revisions.get( match.getId() );
+			int rev;
+			if( revision != null ) {
+				rev = revision.intValue();
+				if( MatchCache.get().hasFull( match.getId(), rev ) ) {
+					continue;
+				}
+			}
+			else {
+				rev = MatchCache.UNKNOWN_REVISION;
+				if( MatchCache.get().getFresh( match.getId() ) != null ) {
+					continue;
+				}
+			}
+			if( !inFlight.add( match.getId() ) ) {
+				continue;
+			}
+			
+			executor.execute( new PrefetchTask( match.getId(), rev ) );
+			queued++;
+		}
+		
+		if( queued > 0 ) {
+			Log.i( LOG_TAG, "Prefetching " + queued + " match(es)" );
+			warmAssets();
+		}
+	}
+	
+	/**
+	 * What MatchActivity shows before its layout is up. Held until the next
+	 * Preloader.releaseDrawables().
+	 */
+	private void warmAssets() {
+		Preloader preloader = new Preloader( context );
+		preloader.addWindowBackground( MatchActivity.class );
+		preloader.start();
+	}
+	
+	/**
+	 * Drops everything that hasn't started yet. Loads already running are
+	 * left to finish.
+	 */
+	public void cancel() {
+		ArrayList<Runnable> dropped = new ArrayList<Runnable>();
+		executor.getQueue().drainTo( dropped );
+		for( Runnable runnable : dropped ) {
+			inFlight.remove( ( (PrefetchTask)runnable ).matchId );
+		}
+	}
+	
+	private boolean withinBudget() {
+		ConnectivityManager cm = (ConnectivityManager)context.getSystemService( Context.CONNECTIVITY_SERVICE );
+		NetworkInfo network = cm.getActiveNetworkInfo();
+		if( network == null || !network.isConnected() || network.isRoaming() ) {
+			return false;
+		}
+		
+		// Sticky broadcast, this doesn't actually register anything
+		Intent battery = context.registerReceiver( null, new IntentFilter( Intent.ACTION_BATTERY_CHANGED ) );
+		if( battery != null ) {
+			int status = battery.getIntExtra( BatteryManager.EXTRA_STATUS, -1 );
+			boolean charging = status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL;
+			int level = battery.getIntExtra( BatteryManager.EXTRA_LEVEL, -1 );
+			int scale = battery.getIntExtra( BatteryManager.EXTRA_SCALE, -1 );
+			if( !charging && level >= 0 && scale > 0 && level * 100 / scale < MIN_BATTERY_PERCENT ) {
+				Log.i( LOG_TAG, "Battery low, not prefetching" );
+				return false;
+			}
+		}
+		
+		return true;
+	}
+}
@@ -0,0 +1,122 @@
+package com.badbob.app.getaclue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Intent;
+
+/**
+ * Hands matches to MatchActivity and MatchSummaryActivity within the process
+ * instead of serializing the whole MatchTwoPlayer into the Intent. The
+ * sender registers the match and puts its id and version in the extras;
+ * the receiver gets the same live object back out of here.
+ * 
+ * Until MatchActivity and MatchSummaryActivity read it with getMatch(),
+ * putMatch() also puts the whole match in the old "Match" extra, and that is
+ * what getMatch() falls back to. Once they do, senders can switch to
+ * putMatchId(). Without the extra, if the process was killed in between the
+ * registry is empty, getMatch() returns null and the activity has to load
+ * the match by getMatchId(). The same goes for a match that has been pushed
+ * out: MainActivity removes each one when its activity returns, and only
+ * the MAX_ENTRIES most recently used are kept in any case so full match
+ * histories don't pile up.
+ */
+public class MatchRegistry {
+	
+	public static final String EXTRA_MATCH_ID = "MatchId";
+	public static final String EXTRA_MATCH_VERSION = "MatchVersion";
+	
+	// The old extra with the serialized match
+	public static final String EXTRA_MATCH = "Match";
+	
+	private static class Entry {
+		final MatchTwoPlayer match;
+		final long version;
+		
+		Entry( MatchTwoPlayer match, long version ) {
+			this.match = match;
+			this.version = version;
+		}
+	}
+	
+	private static final int MAX_ENTRIES = 8;
+	
+	private static final MatchRegistry instance = new MatchRegistry();
+	
+	// In access order so the eldest is the least recently used
+	private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>( 16, 0.75f, true ) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<Integer, Entry> eldest ) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	private long nextVersion = 1;
+	
+	/**
+	 * The one the activities share. Only a benchmark or the like should make
+	 * its own.
+	 */
+	public static MatchRegistry get() {
+		return instance;
+	}
+	
+	/**
+	 * Registers the match and puts its id and version in the intent, along
+	 * with the whole match for receivers that still read EXTRA_MATCH.
+	 */
+	public synchronized void putMatch( Intent intent, MatchTwoPlayer match ) {
+		putMatchId( intent, match );
+		intent.putExtra( EXTRA_MATCH, match );
+	}
+	
+	/**
+	 * Registers the match and only puts its id and version in the intent.
+	 * For once every receiver gets the match from getMatch().
+	 */
+	public synchronized void putMatchId( Intent intent, MatchTwoPlayer match ) {
+		long version = nextVersion++;
+		entries.put( match.getId(), new Entry( match, version ) );
+		intent.putExtra( EXTRA_MATCH_ID, match.getId() );
+		intent.putExtra( EXTRA_MATCH_VERSION, version );
+	}
+	
+	/**
+	 * @return The registered match for the intent. If it has been registered
+	 *         again since, the newer one. Otherwise the whole match from the
+	 *         intent, or null if it doesn't have it either.
+	 */
+	public synchronized MatchTwoPlayer getMatch( Intent intent ) {
+		if( intent.hasExtra( EXTRA_MATCH_ID ) ) {
+			Entry entry = entries.get( intent.getIntExtra( EXTRA_MATCH_ID, -1 ) );
+			if( entry != null && entry.version >= intent.getLongExtra( EXTRA_MATCH_VERSION, 0 ) ) {
+				return entry.match;
+			}
+		}
+		return (MatchTwoPlayer)intent.getSerializableExtra( EXTRA_MATCH );
+	}
+	
+	/**
+	 * @return The id of the match in the intent, -1 if there isn't one
+	 */
+	public static int getMatchId( Intent intent ) {
+		if( intent.hasExtra( EXTRA_MATCH_ID ) ) {
+			return intent.getIntExtra( EXTRA_MATCH_ID, -1 );
+		}
+		MatchTwoPlayer match = (MatchTwoPlayer)intent.getSerializableExtra( EXTRA_MATCH );
+		return match != null ? match.getId() : -1;
+	}
+	
+	/**
+	 * Drops the match once nothing needs it any more, e.g. when its activity
+	 * has returned or it is deleted.
+	 */
+	public synchronized void remove( int matchId ) {
+		entries.remove( matchId );
+	}
+	
+	public synchronized void clear() {
+		entries.clear();
+	}
+}
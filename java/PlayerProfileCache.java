@@ -0,0 +1,208 @@
+package com.badbob.app.getaclue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Keeps the logged in player on disk so a warm start can set thisPlayer
+ * straight away instead of waiting on Player.fromBasicId() or
+ * Player.fromFacebookId(). The player is still loaded from the server in
+ * the background and saved again, but only if it has actually changed.
+ * 
+ * The player is saved along with the login it belongs to ("basic:<id>" or
+ * "facebook") and load() only gives it back for the same login. Saving,
+ * serializing included, happens on a background thread, and the file is
+ * written to a temp file which is renamed over the old one.
+ */
+public class PlayerProfileCache {
+	
+	private static final String LOG_TAG = "GetAClue::PlayerProfileCache";
+	
+	private static final String FILE_NAME = "player_profile.cache";
+	
+	// Bump this if the file layout changes
+	private static final int VERSION = 1;
+	
+	private static final ExecutorService writer = Executors.newSingleThreadExecutor();
+	
+	private final File file;
+	
+	// What is on disk, or about to be, so an unchanged player isn't written
+	// again. Guarded by this.
+	private String savedLogin = null;
+	private byte[] savedPlayer = null;
+	
+	public PlayerProfileCache( Context context ) {
+		file = new File( context.getFilesDir(), FILE_NAME );
+	}
+	
+	/**
+	 * @return The player saved for this login or null if there isn't one or
+	 *         it can't be read (a different version, Player changed, etc.)
+	 */
+	public synchronized Player load( String login ) {
+		if( !file.exists() ) {
+			return null;
+		}
+		
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream( new FileInputStream( file ) );
+			if( in.readInt() != VERSION ) {
+				return null;
+			}
+			String fileLogin = in.readUTF();
+			byte[] bytes = new byte[ in.readInt() ];
+			in.readFully( bytes );
+			
+			savedLogin = fileLogin;
+			savedPlayer = bytes;
+			if( !fileLogin.equals( login ) ) {
+				return null;
+			}
+			
+			ObjectInputStream playerIn = new ObjectInputStream( new ByteArrayInputStream( bytes ) );
+			return (Player)playerIn.readObject();
+		}
+		catch( Exception e ) {
+			Log.w( LOG_TAG, "Could not read the player cache: " + e.getMessage() );
+			savedLogin = null;
+			savedPlayer = null;
+			file.delete();
+			return null;
+		}
+		finally {
+			close( in );
+		}
+	}
+	
+	/**
+	 * Saves the player if it is different from what was last saved. It is
+	 * serialized, compared and written on the writer thread, so this can be
+	 * called from the UI thread.
+	 * 
+	 * @return Gives true if it was different, once it has been written
+	 */
+	public Future<Boolean> save( final String login, final Player player ) {
+		return writer.submit( new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				byte[] data = encodeIfChanged( login, player );
+				if( data == null ) {
+					return false;
+				}
+				write( data );
+				return true;
+			}
+		} );
+	}
+	
+	/**
+	 * @return The file contents for the player or null if it is the same as
+	 *         what was last saved
+	 */
+	private synchronized byte[] encodeIfChanged( String login, Player player ) {
+		byte[] bytes;
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream( buf );
+			out.writeObject( player );
+			out.close();
+			bytes = buf.toByteArray();
+		}
+		catch( IOException e ) {
+			Log.w( LOG_TAG, "Could not serialize the player", e );
+			return null;
+		}
+		
+		if( login.equals( savedLogin ) && Arrays.equals( bytes, savedPlayer ) ) {
+			return null;
+		}
+		savedLogin = login;
+		savedPlayer = bytes;
+		
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream( buf );
+			out.writeInt( VERSION );
+			out.writeUTF( login );
+			out.writeInt( bytes.length );
+			out.write( bytes );
+			out.close();
+			return buf.toByteArray();
+		}
+		catch( IOException e ) {
+			// Can't happen writing to memory
+			return null;
+		}
+	}
+	
+	// Only called on the writer thread
+	private void write( byte[] data ) {
+		File tmp = new File( file.getPath() + ".tmp" );
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream( tmp );
+			out.write( data );
+			out.getFD().sync();
+			out.close();
+			out = null;
+			
+			if( !tmp.renameTo( file ) ) {
+				Log.w( LOG_TAG, "Could not rename " + tmp );
+			}
+		}
+		catch( IOException e ) {
+			Log.w( LOG_TAG, "Could not write the player cache", e );
+		}
+		finally {
+			close( out );
+		}
+	}
+	
+	/**
+	 * Removes the saved player, e.g. on logout.
+	 */
+	public synchronized void clear() {
+		savedLogin = null;
+		savedPlayer = null;
+		writer.execute( new Runnable() {
+			@Override
+			public void run() {
+				// Again, in case a save queued before this ran after it
+				synchronized( PlayerProfileCache.this ) {
+					savedLogin = null;
+					savedPlayer = null;
+				}
+				file.delete();
+			}
+		} );
+	}
+	
+	private static void close( Closeable stream ) {
+		if( stream != null ) {
+			try {
+				stream.close();
+			}
+			catch( IOException e ) {
+			}
+		}
+	}
+}
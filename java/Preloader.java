@@ -0,0 +1,266 @@
+package com.badbob.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Loads resources an app is about to need on a background thread at start
+ * up, so the main thread finds them ready instead of decoding them before
+ * the first draw.
+ * 
+ * Nothing is looked up or decoded on the calling thread, the add methods
+ * only queue the work.
+ * 
+ * Drawables are loaded through Resources and held on to until
+ * releaseDrawables(). While they are held Resources' own drawable cache
+ * hands out their state, so setBackgroundResource() and the like don't
+ * decode them again. Fonts go into Typefaces. String arrays are kept here
+ * and read back with getStringArray().
+ * 
+ * Each item is timed and the trace is logged when they are all done, and
+ * can be had from getTrace(). Anything that has to wait for the items can
+ * use whenLoaded().
+ */
+public class Preloader {
+	
+	private static final String LOG_TAG = "Preloader";
+	
+	/**
+	 * How long one item took.
+	 */
+	public static class TraceEntry {
+		public final String name;
+		public final long startMs;
+		public final long elapsedMs;
+		public final boolean ok;
+		
+		TraceEntry( String name, long startMs, long elapsedMs, boolean ok ) {
+			this.name = name;
+			this.startMs = startMs;
+			this.elapsedMs = elapsedMs;
+			this.ok = ok;
+		}
+		
+		@Override
+		public String toString() {
+			return name + ": " + elapsedMs + "ms at +" + startMs + "ms" + ( ok ? "" : " (failed)" );
+		}
+	}
+	
+	private interface Item {
+		String name();
+		void load() throws Exception;
+	}
+	
+	private static final ArrayList<Drawable> drawables = new ArrayList<Drawable>();
+	private static final HashMap<Integer, String[]> stringArrays = new HashMap<Integer, String[]>();
+	
+	private final Context context;
+	private final Resources res;
+	private final ArrayList<Item> items = new ArrayList<Item>();
+	private final List<TraceEntry> trace = Collections.synchronizedList( new ArrayList<TraceEntry>() );
+	private final Handler main = new Handler( Looper.getMainLooper() );
+	
+	// Guarded by this
+	private boolean started = false;
+	private boolean loaded = false;
+	private final ArrayList<Runnable> waiting = new ArrayList<Runnable>();
+	
+	public Preloader( Context context ) {
+		this.context = context.getApplicationContext();
+		res = this.context.getResources();
+	}
+	
+	public void addDrawable( final int resId ) {
+		items.add( new Item() {
+			@Override
+			public String name() {
+				return "drawable " + res.getResourceEntryName( resId );
+			}
+			
+			@Override
+			public void load() {
+				Drawable drawable = res.getDrawable( resId );
+				synchronized( drawables ) {
+					drawables.add( drawable );
+				}
+			}
+		} );
+	}
+	
+	/**
+	 * The window background from the activity's theme, what shows before its
+	 * layout is up. The theme is looked up on the loader thread as well.
+	 */
+	public void addWindowBackground( final Class<?> activityClass ) {
+		items.add( new Item() {
+			@Override
+			public String name() {
+				return "window background of " + activityClass.getSimpleName();
+			}
+			
+			@Override
+			public void load() throws Exception {
+				ComponentName activity = new ComponentName( context, activityClass );
+				Resources.Theme theme = res.newTheme();
+				theme.applyStyle( context.getPackageManager().getActivityInfo( activity, 0 ).getThemeResource(), true );
+				TypedArray attrs = theme.obtainStyledAttributes( new int[] { android.R.attr.windowBackground } );
+				int background = attrs.getResourceId( 0, 0 );
+				attrs.recycle();
+				if( background == 0 ) {
+					return;
+				}
+				
+				Drawable drawable = res.getDrawable( background );
+				synchronized( drawables ) {
+					drawables.add( drawable );
+				}
+			}
+		} );
+	}
+	
+	public void addFont( final String assetPath ) {
+		items.add( new Item() {
+			@Override
+			public String name() {
+				return "font " + assetPath;
+			}
+			
+			@Override
+			public void load() throws Exception {
+				if( Typefaces.get( context, assetPath ) == null ) {
+					throw new Exception( "Could not load " + assetPath );
+				}
+			}
+		} );
+	}
+	
+	public void addStringArray( final int resId ) {
+		items.add( new Item() {
+			@Override
+			public String name() {
+				return "array " + res.getResourceEntryName( resId );
+			}
+			
+			@Override
+			public void load() {
+				getStringArray( context, resId );
+			}
+		} );
+	}
+	
+	/**
+	 * Loads everything added so far on a new thread, in the order it was
+	 * added. Only the first call does anything.
+	 */
+	public synchronized void start() {
+		if( started ) {
+			return;
+		}
+		started = true;
+		
+		final ArrayList<Item> toLoad = new ArrayList<Item>( items );
+		Thread thread = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				long begin = SystemClock.elapsedRealtime();
+				for( Item item : toLoad ) {
+					long start = SystemClock.elapsedRealtime();
+					boolean ok = true;
+					try {
+						item.load();
+					}
+					catch( Exception e ) {
+						// Whoever needs it will just load it themselves
+						Log.w( LOG_TAG, "Could not preload " + item.name() + ": " + e.getMessage() );
+						ok = false;
+					}
+					long end = SystemClock.elapsedRealtime();
+					trace.add( new TraceEntry( item.name(), start - begin, end - start, ok ) );
+				}
+				
+				Log.i( LOG_TAG, "Preloaded " + toLoad.size() + " item(s) in " + ( SystemClock.elapsedRealtime() - begin ) + "ms" );
+				synchronized( trace ) {
+					for( TraceEntry entry : trace ) {
+						Log.i( LOG_TAG, "  " + entry );
+					}
+				}
+				
+				synchronized( Preloader.this ) {
+					loaded = true;
+					for( Runnable runnable : waiting ) {
+						main.post( runnable );
+					}
+					waiting.clear();
+				}
+			}
+		}, "Preloader" );
+		thread.start();
+	}
+	
+	/**
+	 * Runs the runnable on the main thread once everything has been loaded,
+	 * failed items included. If that has already happened and this is the
+	 * main thread it is run straight away.
+	 */
+	public void whenLoaded( Runnable runnable ) {
+		synchronized( this ) {
+			if( !loaded ) {
+				waiting.add( runnable );
+				return;
+			}
+		}
+		if( Looper.myLooper() == Looper.getMainLooper() ) {
+			runnable.run();
+		}
+		else {
+			main.post( runnable );
+		}
+	}
+	
+	/**
+	 * @return The timings of the items loaded so far
+	 */
+	public List<TraceEntry> getTrace() {
+		synchronized( trace ) {
+			return new ArrayList<TraceEntry>( trace );
+		}
+	}
+	
+	/**
+	 * @return The string array, from what was preloaded if it was, otherwise
+	 *         loaded now and kept for next time. It is shared so don't
+	 *         change it.
+	 */
+	public static String[] getStringArray( Context context, int resId ) {
+		synchronized( stringArrays ) {
+			String[] array = stringArrays.get( resId );
+			if( array == null ) {
+				array = context.getResources().getStringArray( resId );
+				stringArrays.put( resId, array );
+			}
+			return array;
+		}
+	}
+	
+	/**
+	 * Lets go of the preloaded drawables once whatever needed them is up.
+	 */
+	public static void releaseDrawables() {
+		synchronized( drawables ) {
+			drawables.clear();
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package com.badbob.app.getaclue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.badbob.app.getaclue.BillingSecurity.VerifiedPurchase;
+import com.badbob.app.getaclue.PurchaseVerifier.SignedPayload;
+import com.badbob.util.Base64DecoderException;
+
+/**
+ * Takes PURCHASE_STATE_CHANGED payloads off the broadcast receiver's thread
+ * and runs them through three stages, each on its own thread and connected
+ * by bounded queues:
+ * 
+ * 1. verify - Base64 decode, RSA verify and parse the orders
+ * 2. deliver - publish the purchases to BillingHelper
+ * 3. confirm - queue the confirmations, which BillingHelper sends in
+ *    batches, then tell the completed handler
+ * 
+ * While one broadcast is being confirmed the next one can already be
+ * verified. When several broadcasts are waiting, as in a restore flood, the
+ * verify stage takes them all and checks them in one pass. If the first queue is full submit() runs all of the stages on
+ * the caller's thread instead of dropping the purchase.
+ */
+class PurchasePipeline {
+	
+	private static final String TAG = "PurchasePipeline";
+	
+	private static final int QUEUE_CAPACITY = 32;
+	
+	// Most broadcasts a stage takes off its queue at once
+	private static final int MAX_BATCHES_PER_PASS = 16;
+	
+	/**
+	 * One broadcast's worth of work as it moves down the pipeline.
+	 */
+	private static class Batch {
+		final SignedPayload payload;
+		ArrayList<VerifiedPurchase> purchases;
+		
+		Batch( String signedData, String signature ) {
+			payload = new SignedPayload( signedData, signature );
+		}
+	}
+	
+	// Put on a queue to stop the stage reading it
+	private static final Batch STOP = new Batch( null, null );
+	
+	private final BlockingQueue<Batch> verifyQueue = new ArrayBlockingQueue<Batch>( QUEUE_CAPACITY );
+	private final BlockingQueue<Batch> deliverQueue = new ArrayBlockingQueue<Batch>( QUEUE_CAPACITY );
+	private final BlockingQueue<Batch> confirmQueue = new ArrayBlockingQueue<Batch>( QUEUE_CAPACITY );
+	
+	private final Thread verifyThread;
+	private final Thread deliverThread;
+	private final Thread confirmThread;
+	
+	private volatile boolean stopped = false;
+	
+	PurchasePipeline() {
+		verifyThread = new StageThread( "PurchaseVerify", verifyQueue, deliverQueue ) {
+			@Override
+			void process( Batch batch ) {
+				verify( batch );
+			}
+			
+			@Override
+			void process( List<Batch> batches ) {
+				verify( batches );
+			}
+			
+			@Override
+			boolean stopWhenDrained() {
+				return stopped;
+			}
+		};
+		deliverThread = new StageThread( "PurchaseDeliver", deliverQueue, confirmQueue ) {
+			@Override
+			void process( Batch batch ) {
+				BillingHelper.deliverPurchases( batch.purchases );
+			}
+		};
+		confirmThread = new StageThread( "PurchaseConfirm", confirmQueue, null ) {
+			@Override
+			void process( Batch batch ) {
+				confirm( batch );
+			}
+		};
+		
+		verifyThread.start();
+		deliverThread.start();
+		confirmThread.start();
+	}
+	
+	/**
+	 * Hands the payload to the verify stage. Never blocks for long; when the
+	 * pipeline is backed up or stopped the payload is processed right here.
+	 */
+	void submit( String signedData, String signature ) {
+		Batch batch = new Batch( signedData, signature );
+		if( stopped || !verifyQueue.offer( batch ) ) {
+			Log.w( TAG, "Pipeline unavailable, processing purchase inline" );
+			process( batch );
+		}
+	}
+	
+	/**
+	 * Runs all three stages on the caller's thread.
+	 */
+	static void process( String signedData, String signature ) {
+		process( new Batch( signedData, signature ) );
+	}
+	
+	private static void process( Batch batch ) {
+		verify( batch );
+		BillingHelper.deliverPurchases( batch.purchases );
+		confirm( batch );
+	}
+	
+	/**
+	 * Lets everything already submitted run through and then ends the stage
+	 * threads. Called on the main thread so it never waits for room in the
+	 * queue; if it is full the verify stage stops once it has drained it.
+	 * Use awaitStopped() to know when that has happened.
+	 */
+	void stop() {
+		stopped = true;
+		verifyQueue.offer( STOP );
+	}
+	
+	/**
+	 * Waits for the stage threads to finish after stop(). Not on the main
+	 * thread.
+	 * 
+	 * @return false if any of them was still going when the time ran out
+	 */
+	boolean awaitStopped( long timeoutMs ) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		for( Thread thread : new Thread[] { verifyThread, deliverThread, confirmThread } ) {
+			long remaining = deadline - System.currentTimeMillis();
+			if( remaining <= 0 ) {
+				break;
+			}
+			thread.join( remaining );
+		}
+		return !verifyThread.isAlive() && !deliverThread.isAlive() && !confirmThread.isAlive();
+	}
+	
+	private static void verify( Batch batch ) {
+		try {
+			batch.purchases = BillingHelper.verifyPayload( batch.payload.signedData, batch.payload.signature );
+		}
+		catch( Base64DecoderException e ) {
+			Log.e( TAG, "Purchase signature could not be decoded", e );
+			batch.purchases = null;
+		}
+	}
+	
+	private static void verify( List<Batch> batches ) {
+		if( batches.size() == 1 ) {
+			verify( batches.get( 0 ) );
+			return;
+		}
+		
+		ArrayList<SignedPayload> payloads = new ArrayList<SignedPayload>( batches.size() );
+		for( Batch batch : batches ) {
+			payloads.add( batch.payload );
+		}
+		ArrayList<ArrayList<VerifiedPurchase>> results = BillingHelper.verifyPayloads( payloads );
+		for( int i = 0; i < batches.size(); i++ ) {
+			batches.get( i ).purchases = results.get( i );
+		}
+	}
+	
+	private static void confirm( Batch batch ) {
+		BillingHelper.confirmPurchases( batch.purchases );
+		BillingHelper.notifyPurchasesCompleted( batch.purchases );
+	}
+	
+	private abstract static class StageThread extends Thread {
+		private final BlockingQueue<Batch> in;
+		private final BlockingQueue<Batch> out;
+		
+		StageThread( String name, BlockingQueue<Batch> in, BlockingQueue<Batch> out ) {
+			super( name );
+			this.in = in;
+			this.out = out;
+			setDaemon( true );
+		}
+		
+		abstract void process( Batch batch );
+		
+		// Everything that was waiting, in order
+		void process( List<Batch> batches ) {
+			for( Batch batch : batches ) {
+				try {
+					process( batch );
+				}
+				catch( RuntimeException e ) {
+					Log.e( TAG, getName() + " failed", e );
+				}
+			}
+		}
+		
+		// For when stop() couldn't get STOP onto a full queue
+		boolean stopWhenDrained() {
+			return false;
+		}
+		
+		@Override
+		public void run() {
+			Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+			ArrayList<Batch> batches = new ArrayList<Batch>();
+			try {
+				while( true ) {
+					batches.clear();
+					batches.add( in.take() );
+					in.drainTo( batches, MAX_BATCHES_PER_PASS - 1 );
+					boolean stop = batches.remove( STOP );
+					
+					if( !batches.isEmpty() ) {
+						try {
+							process( batches );
+						}
+						catch( RuntimeException e ) {
+							Log.e( TAG, getName() + " failed", e );
+						}
+					}
+					
+					if( out != null ) {
+						for( Batch batch : batches ) {
+							out.put( batch );
+						}
+						if( stop ) {
+							out.put( STOP );
+						}
+					}
+					if( stop ) {
+						return;
+					}
+					if( in.isEmpty() && stopWhenDrained() ) {
+						if( out != null ) {
+							out.put( STOP );
+						}
+						return;
+					}
+				}
+			}
+			catch( InterruptedException e ) {
+				Log.w( TAG, getName() + " interrupted" );
+			}
+		}
+	}
+}
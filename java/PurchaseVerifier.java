@@ -0,0 +1,256 @@
+package com.badbob.app.getaclue;
+
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.badbob.app.getaclue.BillingConstants.PurchaseState;
+import com.badbob.app.getaclue.BillingSecurity.VerifiedPurchase;
+import com.badbob.util.Base64;
+import com.badbob.util.Base64DecoderException;
+
+/**
+ * Does the same job as BillingSecurity.verifyPurchase() but only decodes the
+ * public key once, and each thread keeps its own Signature already
+ * initialized with the key. A burst of PURCHASE_STATE_CHANGED broadcasts
+ * then only pays for the Base64 decode of the signature and the RSA verify
+ * itself.
+ * 
+ * Signature isn't thread safe so instances are never shared between
+ * threads, hence the ThreadLocal.
+ */
+public class PurchaseVerifier {
+	
+	private static final String TAG = "PurchaseVerifier";
+	
+	private static final String KEY_FACTORY_ALGORITHM = "RSA";
+	private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+	
+	/**
+	 * One (signedData, signature) pair as delivered by a
+	 * PURCHASE_STATE_CHANGED broadcast.
+	 */
+	public static class SignedPayload {
+		public final String signedData;
+		public final String signature;
+		
+		public SignedPayload( String signedData, String signature ) {
+			this.signedData = signedData;
+			this.signature = signature;
+		}
+	}
+	
+	private final PublicKey publicKey;
+	
+	private final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>() {
+		@Override
+		protected Signature initialValue() {
+			try {
+				Signature sig = Signature.getInstance( SIGNATURE_ALGORITHM );
+				sig.initVerify( publicKey );
+				return sig;
+			}
+			catch( NoSuchAlgorithmException e ) {
+				throw new RuntimeException( e );
+			}
+			catch( InvalidKeyException e ) {
+				throw new IllegalArgumentException( e );
+			}
+		}
+	};
+	
+	/**
+	 * @param base64EncodedPublicKey The app's public key from the publisher
+	 *        site
+	 * @throws IllegalArgumentException If the key can't be decoded
+	 */
+	public PurchaseVerifier( String base64EncodedPublicKey ) {
+		try {
+			byte[] decodedKey = Base64.decode( base64EncodedPublicKey );
+			KeyFactory keyFactory = KeyFactory.getInstance( KEY_FACTORY_ALGORITHM );
+			publicKey = keyFactory.generatePublic( new X509EncodedKeySpec( decodedKey ) );
+		}
+		catch( NoSuchAlgorithmException e ) {
+			throw new RuntimeException( e );
+		}
+		catch( InvalidKeySpecException e ) {
+			Log.e( TAG, "Invalid key specification." );
+			throw new IllegalArgumentException( e );
+		}
+		catch( Base64DecoderException e ) {
+			Log.e( TAG, "Base64 decoding failed." );
+			throw new IllegalArgumentException( e );
+		}
+	}
+	
+	/**
+	 * Checks the signature against the signed data.
+	 * 
+	 * @param signedData
+	 * @param signature Base64 encoded
+	 * @return true if the data was signed with our key
+	 * @throws Base64DecoderException
+	 */
+	public boolean verifySignature( String signedData, String signature ) throws Base64DecoderException {
+		byte[] decodedSignature = Base64.decode( signature );
+		Signature sig = signatures.get();
+		try {
+			sig.update( signedData.getBytes() );
+			// verify() resets the Signature back to the state after
+			// initVerify() so it is ready for the next one
+			if( !sig.verify( decodedSignature ) ) {
+				Log.e( TAG, "Signature verification failed." );
+				return false;
+			}
+			return true;
+		}
+		catch( SignatureException e ) {
+			Log.e( TAG, "Signature exception." );
+			// Start over with a fresh one rather than trusting its state
+			signatures.remove();
+			return false;
+		}
+	}
+	
+	/**
+	 * Checks a list of signatures on the calling thread, reusing the same
+	 * Signature for all of them.
+	 * 
+	 * @param payloads
+	 * @return One result per payload, in the same order
+	 */
+	public boolean[] verifySignatures( List<SignedPayload> payloads ) {
+		boolean[] results = new boolean[ payloads.size() ];
+		for( int i = 0; i < payloads.size(); i++ ) {
+			SignedPayload payload = payloads.get( i );
+			try {
+				results[ i ] = payload.signedData != null && !TextUtils.isEmpty( payload.signature ) && verifySignature( payload.signedData, payload.signature );
+			}
+			catch( Base64DecoderException e ) {
+				Log.e( TAG, "Base64 decoding failed." );
+				results[ i ] = false;
+			}
+		}
+		return results;
+	}
+	
+	/**
+	 * Bulk version of verifyPurchase() for a restore flood. The signatures are
+	 * all checked first on this thread and then the orders of the good ones
+	 * are parsed.
+	 * 
+	 * @param payloads
+	 * @return The verified purchases for each payload, in the same order,
+	 *         with null for the bad ones
+	 */
+	public ArrayList<ArrayList<VerifiedPurchase>> verifyPurchases( List<SignedPayload> payloads ) {
+		ArrayList<ArrayList<VerifiedPurchase>> results = new ArrayList<ArrayList<VerifiedPurchase>>( payloads.size() );
+		boolean[] verified = verifySignatures( payloads );
+		for( int i = 0; i < payloads.size(); i++ ) {
+			SignedPayload payload = payloads.get( i );
+			if( payload.signedData == null || ( !verified[ i ] && !TextUtils.isEmpty( payload.signature ) ) ) {
+				results.add( null );
+			}
+			else {
+				results.add( parsePurchases( payload.signedData, verified[ i ] ) );
+			}
+		}
+		return results;
+	}
+	
+	/**
+	 * Verifies the signature and parses the orders the same way
+	 * BillingSecurity.verifyPurchase() does, nonce check included.
+	 * 
+	 * @param signedData
+	 * @param signature
+	 * @return The verified purchases or null if the data is bad or the nonce
+	 *         is unknown
+	 * @throws Base64DecoderException
+	 */
+	public ArrayList<VerifiedPurchase> verifyPurchase( String signedData, String signature ) throws Base64DecoderException {
+		if( signedData == null ) {
+			Log.e( TAG, "data is null" );
+			return null;
+		}
+		
+		boolean verified = false;
+		if( !TextUtils.isEmpty( signature ) ) {
+			verified = verifySignature( signedData, signature );
+			if( !verified ) {
+				return null;
+			}
+		}
+		
+		return parsePurchases( signedData, verified );
+	}
+	
+	private static ArrayList<VerifiedPurchase> parsePurchases( String signedData, boolean verified ) {
+		JSONObject jObject;
+		JSONArray jTransactionsArray = null;
+		int numTransactions = 0;
+		long nonce = 0L;
+		try {
+			jObject = new JSONObject( signedData );
+			
+			// The nonce might be null if the user backed out of the buy page.
+			nonce = jObject.optLong( "nonce" );
+			jTransactionsArray = jObject.optJSONArray( "orders" );
+			if( jTransactionsArray != null ) {
+				numTransactions = jTransactionsArray.length();
+			}
+		}
+		catch( JSONException e ) {
+			return null;
+		}
+		
+		if( !BillingSecurity.isNonceKnown( nonce ) ) {
+			Log.w( TAG, "Nonce not found: " + nonce );
+			return null;
+		}
+		
+		ArrayList<VerifiedPurchase> purchases = new ArrayList<VerifiedPurchase>();
+		try {
+			for( int i = 0; i < numTransactions; i++ ) {
+				JSONObject jElement = jTransactionsArray.getJSONObject( i );
+				PurchaseState purchaseState = PurchaseState.valueOf( jElement.getInt( "purchaseState" ) );
+				String productId = jElement.getString( "productId" );
+				long purchaseTime = jElement.getLong( "purchaseTime" );
+				String orderId = jElement.optString( "orderId", "" );
+				String notifyId = null;
+				if( jElement.has( "notificationId" ) ) {
+					notifyId = jElement.getString( "notificationId" );
+				}
+				String developerPayload = jElement.optString( "developerPayload", null );
+				
+				// If the purchase state is PURCHASED, then we require a
+				// verified nonce.
+				if( purchaseState == PurchaseState.PURCHASED && !verified ) {
+					continue;
+				}
+				purchases.add( new VerifiedPurchase( purchaseState, notifyId, productId, orderId, purchaseTime, developerPayload ) );
+			}
+		}
+		catch( JSONException e ) {
+			Log.e( TAG, "JSON exception: ", e );
+			return null;
+		}
+		
+		BillingSecurity.removeNonce( nonce );
+		return purchases;
+	}
+}
@@ -0,0 +1,130 @@
+package com.badbob.app.getaclue;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Turns a burst of refresh requests (GCM pushes, notification taps, etc.)
+ * into as few refreshes as possible. Requests that come in within the
+ * window of each other are coalesced into one, only one refresh is ever
+ * running, and anything asked for while it runs is remembered as a single
+ * pending refresh that starts when it finishes.
+ * 
+ * Everything here must be called on the thread the scheduler was made on
+ * (the main thread).
+ */
+public class RefreshScheduler {
+	
+	private static final String LOG_TAG = "GetAClue::RefreshScheduler";
+	
+	public interface Listener {
+		/**
+		 * Start the actual refresh. refreshComplete() must be called when it
+		 * is done, whether it worked or not.
+		 */
+		void onStartRefresh();
+		
+		/**
+		 * Stop the refresh that is running, it won't be needed.
+		 */
+		void onCancelRefresh();
+	}
+	
+	private final Handler handler = new Handler();
+	private final Listener listener;
+	private final long windowMs;
+	
+	private boolean scheduled = false;
+	private boolean inFlight = false;
+	private boolean pending = false;
+	
+	private int coalesced = 0;
+	private long firstRequestTime = 0;
+	
+	private final Runnable fire = new Runnable() {
+		@Override
+		public void run() {
+			scheduled = false;
+			start();
+		}
+	};
+	
+	public RefreshScheduler( Listener listener, long windowMs ) {
+		this.listener = listener;
+		this.windowMs = windowMs;
+	}
+	
+	/**
+	 * Asks for a refresh in the next window.
+	 */
+	public void requestRefresh() {
+		noteRequest();
+		if( inFlight ) {
+			pending = true;
+		}
+		else if( !scheduled ) {
+			scheduled = true;
+			handler.postDelayed( fire, windowMs );
+		}
+	}
+	
+	/**
+	 * Asks for a refresh right away, for when the user is waiting on it. Still
+	 * waits for one that is already running.
+	 */
+	public void refreshNow() {
+		noteRequest();
+		if( inFlight ) {
+			pending = true;
+		}
+		else {
+			handler.removeCallbacks( fire );
+			scheduled = false;
+			start();
+		}
+	}
+	
+	/**
+	 * Called by the listener when its refresh is done.
+	 */
+	public void refreshComplete() {
+		inFlight = false;
+		if( pending ) {
+			pending = false;
+			scheduled = true;
+			handler.postDelayed( fire, windowMs );
+		}
+	}
+	
+	/**
+	 * Drops anything scheduled or pending and cancels the running refresh.
+	 */
+	public void cancel() {
+		handler.removeCallbacks( fire );
+		scheduled = false;
+		pending = false;
+		coalesced = 0;
+		if( inFlight ) {
+			inFlight = false;
+			listener.onCancelRefresh();
+		}
+	}
+	
+	public boolean isRefreshing() {
+		return inFlight;
+	}
+	
+	private void noteRequest() {
+		if( coalesced++ == 0 ) {
+			firstRequestTime = SystemClock.uptimeMillis();
+		}
+	}
+	
+	private void start() {
+		Log.i( LOG_TAG, "Refreshing for " + coalesced + " request(s) over " + ( SystemClock.uptimeMillis() - firstRequestTime ) + "ms" );
+		coalesced = 0;
+		inFlight = true;
+		listener.onStartRefresh();
+	}
+}
@@ -0,0 +1,158 @@
+package com.badbob.app.getaclue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.SharedPreferences.Editor;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Write-back layer over GetAClueApp.getPrefs(). Writes go into memory and
+ * are handed to SharedPreferences together with apply() BATCH_MS after the
+ * first one, so the UI thread never waits on the disk the way it does with
+ * commit(). A key written more than once in that time is only written
+ * once, with the last value.
+ * 
+ * Reads see pending writes, so a value can be read back straight after it
+ * is written. Anything else reading the prefs directly only sees them after
+ * flush(), which activities should call from onPause(). Android waits for
+ * outstanding apply() writes to reach the disk before it finishes pausing
+ * or stopping an activity, so that is as durable as commit() was.
+ * 
+ * Can be used from any thread.
+ */
+public class Settings {
+	
+	// How long writes are held to be batched together
+	private static final long BATCH_MS = 500;
+	
+	// Stands in for a removed key in pending
+	private static final Object REMOVED = new Object();
+	
+	private static final Settings instance = new Settings();
+	
+	private final Handler handler = new Handler( Looper.getMainLooper() );
+	
+	// Guarded by this
+	private final LinkedHashMap<String, Object> pending = new LinkedHashMap<String, Object>();
+	private boolean scheduled = false;
+	
+	private final Runnable flush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+	
+	public static Settings get() {
+		return instance;
+	}
+	
+	public int getInt( String key, int defValue ) {
+		synchronized( this ) {
+			if( pending.containsKey( key ) ) {
+				Object value = pending.get( key );
+				return value instanceof Integer ? (Integer)value : defValue;
+			}
+		}
+		return GetAClueApp.getPrefs().getInt( key, defValue );
+	}
+	
+	public long getLong( String key, long defValue ) {
+		synchronized( this ) {
+			if( pending.containsKey( key ) ) {
+				Object value = pending.get( key );
+				return value instanceof Long ? (Long)value : defValue;
+			}
+		}
+		return GetAClueApp.getPrefs().getLong( key, defValue );
+	}
+	
+	public boolean getBoolean( String key, boolean defValue ) {
+		synchronized( this ) {
+			if( pending.containsKey( key ) ) {
+				Object value = pending.get( key );
+				return value instanceof Boolean ? (Boolean)value : defValue;
+			}
+		}
+		return GetAClueApp.getPrefs().getBoolean( key, defValue );
+	}
+	
+	public String getString( String key, String defValue ) {
+		synchronized( this ) {
+			if( pending.containsKey( key ) ) {
+				Object value = pending.get( key );
+				return value instanceof String ? (String)value : defValue;
+			}
+		}
+		return GetAClueApp.getPrefs().getString( key, defValue );
+	}
+	
+	public void putInt( String key, int value ) {
+		put( key, value );
+	}
+	
+	public void putLong( String key, long value ) {
+		put( key, value );
+	}
+	
+	public void putBoolean( String key, boolean value ) {
+		put( key, value );
+	}
+	
+	public void putString( String key, String value ) {
+		put( key, value != null ? value : REMOVED );
+	}
+	
+	public void remove( String key ) {
+		put( key, REMOVED );
+	}
+	
+	/**
+	 * Hands everything pending to SharedPreferences now. The disk write
+	 * itself still happens in the background.
+	 */
+	public synchronized void flush() {
+		handler.removeCallbacks( flush );
+		scheduled = false;
+		if( pending.isEmpty() ) {
+			return;
+		}
+		
+		// apply() updates the prefs in memory before it returns, so doing it
+		// with the lock held means no read can miss a write in between
+		Editor editor = GetAClueApp.getPrefs().edit();
+		for( Map.Entry<String, Object> write : pending.entrySet() ) {
+			String key = write.getKey();
+			Object value = write.getValue();
+			if( value == REMOVED ) {
+				editor.remove( key );
+			}
+			else if( value instanceof Integer ) {
+				editor.putInt( key, (Integer)value );
+			}
+			else if( value instanceof Long ) {
+				editor.putLong( key, (Long)value );
+			}
+			else if( value instanceof Boolean ) {
+				editor.putBoolean( key, (Boolean)value );
+			}
+			else {
+				editor.putString( key, (String)value );
+			}
+		}
+		editor.apply();
+		pending.clear();
+	}
+	
+	private synchronized void put( String key, Object value ) {
+		// Replaces any earlier write to the key that is still pending
+		pending.put( key, value );
+		
+		if( !scheduled ) {
+			scheduled = true;
+			handler.postDelayed( flush, BATCH_MS );
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package com.badbob.app.getaclue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Timings of the slow paths through the app (start up, logging in, match
+ * list refreshes, opening a match) so a slow session can be looked into
+ * after the fact.
+ * 
+ * A trace is a tree of spans. start() begins the root span, child() a span
+ * inside it, e.g. for each call to the server, and end() finishes one. Spans
+ * can be started and ended on any thread. The last MAX_TRACES finished
+ * traces are kept, along with any that are still going, and exportJSON()
+ * gives them all back, newest last:
+ * 
+ *     [ { "name": "init", "startedAt": <wall clock ms>, "ms": 812,
+ *         "children": [ { "name": "getAppVersion", "at": 3, "ms": 240 }, ... ] },
+ *       ... ]
+ * 
+ * "at" is when a span started relative to its trace, "ms" is how long it
+ * took (missing if it hasn't ended) and "error" is set if it failed.
+ */
+public class Tracer {
+	
+	private static final String LOG_TAG = "GetAClue::Tracer";
+	
+	private static final int MAX_TRACES = 25;
+	
+	// So a span started in a loop can't grow without end
+	private static final int MAX_CHILDREN = 50;
+	
+	public static class Span {
+		private final Span root;
+		private final String name;
+		private final long start;
+		private final long startedAt;
+		private long end = -1;
+		private String error = null;
+		private final ArrayList<Span> children = new ArrayList<Span>();
+		private int droppedChildren = 0;
+		
+		private Span( Span root, String name ) {
+			this.root = root;
+			this.name = name;
+			start = SystemClock.elapsedRealtime();
+			startedAt = System.currentTimeMillis();
+		}
+		
+		/**
+		 * Starts a span inside this one.
+		 */
+		public Span child( String name ) {
+			Span child = new Span( root != null ? root : this, name );
+			synchronized( Tracer.class ) {
+				if( children.size() < MAX_CHILDREN ) {
+					children.add( child );
+				}
+				else {
+					droppedChildren++;
+				}
+			}
+			return child;
+		}
+		
+		/**
+		 * Ends the span. Only the first call counts.
+		 */
+		public void end() {
+			synchronized( Tracer.class ) {
+				if( end != -1 ) {
+					return;
+				}
+				end = SystemClock.elapsedRealtime();
+				
+				if( root == null ) {
+					finished( this );
+				}
+			}
+		}
+		
+		/**
+		 * Ends the span as having failed.
+		 */
+		public void fail( String error ) {
+			synchronized( Tracer.class ) {
+				if( end == -1 ) {
+					this.error = error;
+				}
+			}
+			end();
+		}
+		
+		public void fail( Throwable e ) {
+			fail( e != null ? e.getClass().getSimpleName() + ": " + e.getMessage() : "unknown" );
+		}
+		
+		// Called with the Tracer lock held
+		private JSONObject toJSON( long traceStart ) throws JSONException {
+			JSONObject json = new JSONObject();
+			json.put( "name", name );
+			if( root == null ) {
+				json.put( "startedAt", startedAt );
+			}
+			else {
+				json.put( "at", start - traceStart );
+			}
+			if( end != -1 ) {
+				json.put( "ms", end - start );
+			}
+			if( error != null ) {
+				json.put( "error", error );
+			}
+			if( !children.isEmpty() ) {
+				JSONArray array = new JSONArray();
+				for( Span child : children ) {
+					array.put( child.toJSON( traceStart ) );
+				}
+				json.put( "children", array );
+			}
+			if( droppedChildren > 0 ) {
+				json.put( "droppedChildren", droppedChildren );
+			}
+			return json;
+		}
+	}
+	
+	// Guarded by Tracer.class
+	private static final ArrayDeque<Span> recent = new ArrayDeque<Span>();
+	private static final ArrayList<Span> open = new ArrayList<Span>();
+	
+	/**
+	 * Starts a new trace.
+	 * 
+	 * @return Its root span
+	 */
+	public static Span start( String name ) {
+		Span span = new Span( null, name );
+		synchronized( Tracer.class ) {
+			open.add( span );
+			
+			// The oldest ones must have been forgotten about
+			while( open.size() > MAX_TRACES ) {
+				open.remove( 0 );
+			}
+		}
+		return span;
+	}
+	
+	/**
+	 * @return The kept traces as a JSON array, newest last. Ones that haven't
+	 *         ended yet are included.
+	 */
+	public static synchronized String exportJSON() {
+		ArrayList<Span> all = new ArrayList<Span>( recent );
+		all.addAll( open );
+		
+		JSONArray array = new JSONArray();
+		try {
+			for( Span span : all ) {
+				array.put( span.toJSON( span.start ) );
+			}
+			return array.toString( 2 );
+		}
+		catch( JSONException e ) {
+			Log.w( LOG_TAG, "Could not export traces", e );
+			return "[]";
+		}
+	}
+	
+	public static synchronized void clear() {
+		recent.clear();
+		open.clear();
+	}
+	
+	// Called with the lock held
+	private static void finished( Span span ) {
+		open.remove( span );
+		recent.addLast( span );
+		while( recent.size() > MAX_TRACES ) {
+			recent.removeFirst();
+		}
+		
+		Log.i( LOG_TAG, span.name + " took " + ( span.end - span.start ) + "ms" + ( span.error != null ? " (" + span.error + ")" : "" ) );
+	}
+}
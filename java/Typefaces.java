@@ -0,0 +1,70 @@
+package com.badbob.util;
+
+import java.util.HashMap;
+
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.Typeface;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+
+/**
+ * Fonts from the assets folder, loaded once per process.
+ * Typeface.createFromAsset() reads and parses the whole font file and makes
+ * a new native typeface every time it is called, so screens that set their
+ * fonts on every refresh should get them from here instead.
+ */
+public final class Typefaces {
+	
+	private static final String LOG_TAG = "Typefaces";
+	
+	private static final HashMap<String, Typeface> cache = new HashMap<String, Typeface>();
+	
+	private Typefaces() {
+	}
+	
+	/**
+	 * @param context Any context, only its assets are used
+	 * @param assetPath e.g. "fonts/vaground2.ttf"
+	 * @return The typeface, or null if the font couldn't be loaded (setting
+	 *         null on a TextView gives the default font)
+	 */
+	public static Typeface get( Context context, String assetPath ) {
+		synchronized( cache ) {
+			Typeface tf = cache.get( assetPath );
+			if( tf == null ) {
+				try {
+					tf = Typeface.createFromAsset( context.getApplicationContext().getAssets(), assetPath );
+					cache.put( assetPath, tf );
+				}
+				catch( RuntimeException e ) {
+					// Not cached, in case it was something passing
+					Log.e( LOG_TAG, "Could not load font " + assetPath + ": " + e.getMessage() );
+				}
+			}
+			return tf;
+		}
+	}
+	
+	/**
+	 * Sets the font from assetPath on each of the views. Views that aren't
+	 * there or aren't TextViews (Buttons are) are skipped.
+	 */
+	public static void apply( Activity activity, String assetPath, int... viewIds ) {
+		apply( activity, get( activity, assetPath ), viewIds );
+	}
+	
+	/**
+	 * Sets the typeface on each of the views. Views that aren't there or
+	 * aren't TextViews (Buttons are) are skipped.
+	 */
+	public static void apply( Activity activity, Typeface tf, int... viewIds ) {
+		for( int id : viewIds ) {
+			View view = activity.findViewById( id );
+			if( view instanceof TextView ) {
+				( (TextView)view ).setTypeface( tf );
+			}
+		}
+	}
+}
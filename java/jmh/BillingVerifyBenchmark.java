@@ -0,0 +1,165 @@
+package com.badbob.app.getaclue.jmh;
+
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.badbob.util.Base64;
+
+/**
+ * JMH baseline for the purchase verification path that
+ * BillingHelper.verifyPurchase() goes through: Base64 decoding the public key
+ * and signature, RSA (SHA1withRSA) verification of the signed data and
+ * parsing the orders out of the JSON.
+ * 
+ * The fixtures are generated in setup with a throwaway 2048 bit key pair,
+ * shaped like the market's PURCHASE_STATE_CHANGED payloads with orderCount
+ * orders each. Nothing here touches a device so it runs on a desktop JVM
+ * with JMH, org.json and com.badbob.util on the classpath.
+ * 
+ * Lives in the jmh source folder, which is built on its own so JMH never
+ * ends up on the app's compile path.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 1 )
+public class BillingVerifyBenchmark {
+	
+	private static final String KEY_FACTORY_ALGORITHM = "RSA";
+	private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+	
+	@Param( { "1", "10", "100" } )
+	public int orderCount;
+	
+	private String encodedPublicKey;
+	private PublicKey publicKey;
+	private String signedData;
+	private String signature;
+	
+	@Setup
+	public void setup() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance( KEY_FACTORY_ALGORITHM );
+		generator.initialize( 2048 );
+		KeyPair keyPair = generator.generateKeyPair();
+		
+		encodedPublicKey = Base64.encode( keyPair.getPublic().getEncoded() );
+		publicKey = keyPair.getPublic();
+		signedData = makeSignedData( orderCount );
+		
+		Signature sig = Signature.getInstance( SIGNATURE_ALGORITHM );
+		sig.initSign( keyPair.getPrivate() );
+		sig.update( signedData.getBytes() );
+		signature = Base64.encode( sig.sign() );
+		
+		// Make sure the fixtures are actually good
+		if( !verify( generatePublicKey( encodedPublicKey ), signedData, signature ) ) {
+			throw new IllegalStateException( "Fixture signature does not verify" );
+		}
+	}
+	
+	@Benchmark
+	public byte[] decodePublicKey() throws Exception {
+		return Base64.decode( encodedPublicKey );
+	}
+	
+	@Benchmark
+	public byte[] decodeSignature() throws Exception {
+		return Base64.decode( signature );
+	}
+	
+	@Benchmark
+	public PublicKey generateKey() throws Exception {
+		return generatePublicKey( encodedPublicKey );
+	}
+	
+	/**
+	 * Signature verification with the key already decoded.
+	 */
+	@Benchmark
+	public boolean verifySignature() throws Exception {
+		return verify( publicKey, signedData, signature );
+	}
+	
+	@Benchmark
+	public void parseOrders( Blackhole bh ) throws Exception {
+		JSONObject json = new JSONObject( signedData );
+		bh.consume( json.optLong( "nonce" ) );
+		JSONArray orders = json.optJSONArray( "orders" );
+		for( int i = 0; i < orders.length(); i++ ) {
+			JSONObject order = orders.getJSONObject( i );
+			bh.consume( order.getInt( "purchaseState" ) );
+			bh.consume( order.getString( "productId" ) );
+			bh.consume( order.getLong( "purchaseTime" ) );
+			bh.consume( order.optString( "orderId", "" ) );
+			bh.consume( order.optString( "notificationId", null ) );
+			bh.consume( order.optString( "developerPayload", null ) );
+		}
+	}
+	
+	/**
+	 * The whole thing the way it is done today for every broadcast: decode
+	 * the key, verify, then parse.
+	 */
+	@Benchmark
+	public void fullVerifyPath( Blackhole bh ) throws Exception {
+		PublicKey key = generatePublicKey( encodedPublicKey );
+		bh.consume( verify( key, signedData, signature ) );
+		parseOrders( bh );
+	}
+	
+	private static PublicKey generatePublicKey( String encodedPublicKey ) throws Exception {
+		byte[] decodedKey = Base64.decode( encodedPublicKey );
+		KeyFactory keyFactory = KeyFactory.getInstance( KEY_FACTORY_ALGORITHM );
+		return keyFactory.generatePublic( new X509EncodedKeySpec( decodedKey ) );
+	}
+	
+	private static boolean verify( PublicKey publicKey, String signedData, String signature ) throws Exception {
+		Signature sig = Signature.getInstance( SIGNATURE_ALGORITHM );
+		sig.initVerify( publicKey );
+		sig.update( signedData.getBytes() );
+		return sig.verify( Base64.decode( signature ) );
+	}
+	
+	private static String makeSignedData( int orderCount ) throws Exception {
+		JSONArray orders = new JSONArray();
+		long now = System.currentTimeMillis();
+		for( int i = 0; i < orderCount; i++ ) {
+			JSONObject order = new JSONObject();
+			order.put( "notificationId", "-" + ( 1000000000000000000L + i ) );
+			order.put( "orderId", "12999763169054705758." + ( 1300000000000000L + i ) );
+			order.put( "packageName", "com.badbob.app.getaclue" );
+			order.put( "productId", "tokens_" + ( i % 4 ) );
+			order.put( "purchaseTime", now - i * 1000L );
+			order.put( "purchaseState", 0 );
+			order.put( "developerPayload", "" );
+			orders.put( order );
+		}
+		
+		JSONObject json = new JSONObject();
+		json.put( "nonce", 7260947612548733219L );
+		json.put( "orders", orders );
+		return json.toString();
+	}
+}
@@ -0,0 +1,334 @@
+package com.badbob.app.getaclue.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.badbob.app.getaclue.MatchListDeltaClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand in for the match list endpoints, for measuring what the delta
+ * protocol in MatchListDeltaClient saves over fetching the whole list. It
+ * serves made up matches shaped roughly like the real ones from:
+ * 
+ *     /matchlist/full  - every match, like COMBINED_TURN
+ *     /matchlist/delta - see MatchListDeltaClient
+ * 
+ * This is a desktop tool, it uses the JDK's built in HTTP server which
+ * Android doesn't have, so it lives in the tools source folder and isn't
+ * part of the app. Run main() with org.json and MatchListDeltaClient on the
+ * classpath:
+ * 
+ *     MatchListDeltaStubServer [matches] [changed] [rounds]
+ */
+public class MatchListDeltaStubServer {
+	
+	private static final String FULL_PATH = "/matchlist/full";
+	
+	private static class StubMatch {
+		final int id;
+		int rev = 1;
+		boolean finished;
+		JSONObject json;
+		
+		StubMatch( int id, boolean finished ) {
+			this.id = id;
+			this.finished = finished;
+		}
+	}
+	
+	private final LinkedHashMap<Integer, StubMatch> matches = new LinkedHashMap<Integer, StubMatch>();
+	private HttpServer server;
+	
+	public MatchListDeltaStubServer( int matchCount ) throws JSONException {
+		for( int i = 0; i < matchCount; i++ ) {
+			StubMatch match = new StubMatch( 1000 + i, i % 2 == 1 );
+			match.json = makeMatchJson( match );
+			matches.put( match.id, match );
+		}
+	}
+	
+	public synchronized void start( int port ) throws IOException {
+		server = HttpServer.create( new InetSocketAddress( "127.0.0.1", port ), 0 );
+		server.createContext( FULL_PATH, new HttpHandler() {
+			@Override
+			public void handle( HttpExchange exchange ) throws IOException {
+				try {
+					send( exchange, 200, fullResponse().toString().getBytes( "UTF-8" ), null );
+				}
+				catch( JSONException e ) {
+					send( exchange, 500, new byte[ 0 ], null );
+				}
+			}
+		} );
+		server.createContext( MatchListDeltaClient.PATH, new HttpHandler() {
+			@Override
+			public void handle( HttpExchange exchange ) throws IOException {
+				try {
+					handleDelta( exchange );
+				}
+				catch( JSONException e ) {
+					send( exchange, 400, new byte[ 0 ], null );
+				}
+			}
+		} );
+		server.start();
+	}
+	
+	public synchronized void stop() {
+		if( server != null ) {
+			server.stop( 0 );
+			server = null;
+		}
+	}
+	
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+	
+	/**
+	 * Bumps the revision of the first count matches, as if moves were made.
+	 */
+	public synchronized void touch( int count ) throws JSONException {
+		int touched = 0;
+		for( StubMatch match : matches.values() ) {
+			if( touched++ >= count ) {
+				break;
+			}
+			match.rev++;
+			match.json = makeMatchJson( match );
+		}
+	}
+	
+	private synchronized JSONObject fullResponse() throws JSONException {
+		JSONArray active = new JSONArray();
+		JSONArray finished = new JSONArray();
+		for( StubMatch match : matches.values() ) {
+			( match.finished ? finished : active ).put( match.json );
+		}
+		JSONObject json = new JSONObject();
+		json.put( "active", active );
+		json.put( "finished", finished );
+		return json;
+	}
+	
+	private synchronized String etag() {
+		StringBuilder sb = new StringBuilder();
+		for( StubMatch match : matches.values() ) {
+			sb.append( match.id ).append( ':' ).append( match.rev ).append( match.finished ? 'f' : 'a' ).append( ',' );
+		}
+		return "\"" + Integer.toHexString( sb.toString().hashCode() ) + "\"";
+	}
+	
+	private void handleDelta( HttpExchange exchange ) throws IOException, JSONException {
+		String etag = etag();
+		if( etag.equals( exchange.getRequestHeaders().getFirst( "If-None-Match" ) ) ) {
+			send( exchange, 304, null, etag );
+			return;
+		}
+		
+		JSONObject request = new JSONObject( new String( readAll( exchange.getRequestBody() ), "UTF-8" ) );
+		JSONObject known = request.optJSONObject( "known" );
+		HashMap<Integer, Integer> knownRevisions = new HashMap<Integer, Integer>();
+		if( known != null ) {
+			JSONArray names = known.names();
+			for( int i = 0; names != null && i < names.length(); i++ ) {
+				String name = names.getString( i );
+				knownRevisions.put( Integer.valueOf( name ), known.getInt( name ) );
+			}
+		}
+		
+		JSONArray active = new JSONArray();
+		JSONArray finished = new JSONArray();
+		JSONArray changed = new JSONArray();
+		synchronized( this ) {
+			for( StubMatch match : matches.values() ) {
+				( match.finished ? finished : active ).put( match.id );
+				Integer rev = knownRevisions.remove( match.id );
+				if( rev == null || rev.intValue() != match.rev ) {
+					JSONObject item = new JSONObject();
+					item.put( "id", match.id );
+					item.put( "rev", match.rev );
+					item.put( "match", match.json );
+					changed.put( item );
+				}
+			}
+		}
+		
+		// Whatever they know about that we don't have anymore
+		JSONArray removed = new JSONArray();
+		for( Integer id : knownRevisions.keySet() ) {
+			removed.put( id.intValue() );
+		}
+		
+		JSONObject json = new JSONObject();
+		json.put( "etag", etag );
+		json.put( "active", active );
+		json.put( "finished", finished );
+		json.put( "changed", changed );
+		json.put( "removed", removed );
+		send( exchange, 200, json.toString().getBytes( "UTF-8" ), etag );
+	}
+	
+	private static JSONObject makeMatchJson( StubMatch match ) throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put( "id", match.id );
+		json.put( "rev", match.rev );
+		json.put( "player1", "Player One" );
+		json.put( "player2", "Player Two" );
+		json.put( "state", match.finished ? "finished" : "active" );
+		json.put( "turn", match.rev % 2 );
+		
+		// A turn history roughly as big as a match a few rounds in
+		JSONArray turns = new JSONArray();
+		for( int i = 0; i < 12; i++ ) {
+			JSONObject turn = new JSONObject();
+			turn.put( "round", i / 2 + 1 );
+			turn.put( "clue", "The quick brown fox jumps over the lazy dog " + i );
+			turn.put( "answer", "answer" + i );
+			turn.put( "score", i * 10 );
+			turn.put( "time", 1350000000000L + i * 60000L );
+			turns.put( turn );
+		}
+		json.put( "turns", turns );
+		return json;
+	}
+	
+	private static void send( HttpExchange exchange, int status, byte[] body, String etag ) throws IOException {
+		if( etag != null ) {
+			exchange.getResponseHeaders().set( "ETag", etag );
+		}
+		exchange.getResponseHeaders().set( "Content-Type", "application/json" );
+		exchange.sendResponseHeaders( status, body == null ? -1 : body.length );
+		OutputStream out = exchange.getResponseBody();
+		if( body != null ) {
+			out.write( body );
+		}
+		out.close();
+	}
+	
+	private static byte[] readAll( InputStream in ) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[ 8192 ];
+		int read;
+		while( ( read = in.read( buf ) ) != -1 ) {
+			out.write( buf, 0, read );
+		}
+		in.close();
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Compares a full fetch against a delta fetch for the same change, over a
+	 * number of rounds, and prints the bytes and parse times.
+	 */
+	public static void main( String[] args ) throws Exception {
+		int matchCount = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 20;
+		int changedCount = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 1;
+		int rounds = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 200;
+		
+		MatchListDeltaStubServer stub = new MatchListDeltaStubServer( matchCount );
+		stub.start( 0 );
+		String base = "http://127.0.0.1:" + stub.getPort();
+		MatchListDeltaClient client = new MatchListDeltaClient( new HttpTransport( base ) );
+		
+		try {
+			// Bootstrap so the client knows every revision
+			MatchListDeltaClient.Delta first = client.fetch( null, new HashMap<Integer, Integer>() );
+			String etag = first.etag;
+			Map<Integer, Integer> revisions = new HashMap<Integer, Integer>( first.changedRevisions );
+			
+			long fullBytes = 0, fullParseNanos = 0;
+			long deltaBytes = 0, deltaParseNanos = 0;
+			for( int i = 0; i < rounds; i++ ) {
+				stub.touch( changedCount );
+				
+				byte[] full = get( base + FULL_PATH );
+				long start = System.nanoTime();
+				JSONObject json = new JSONObject( new String( full, "UTF-8" ) );
+				json.getJSONArray( "active" );
+				json.getJSONArray( "finished" );
+				fullParseNanos += System.nanoTime() - start;
+				fullBytes += full.length;
+				
+				MatchListDeltaClient.Delta delta = client.fetch( etag, revisions );
+				deltaParseNanos += delta.parseNanos;
+				deltaBytes += delta.payloadBytes;
+				etag = delta.etag;
+				revisions.putAll( delta.changedRevisions );
+			}
+			
+			System.out.println( matchCount + " matches, " + changedCount + " changed per refresh, " + rounds + " refreshes" );
+			System.out.println( "full:  " + ( fullBytes / rounds ) + " bytes, " + ( fullParseNanos / rounds / 1000 ) + "us parse" );
+			System.out.println( "delta: " + ( deltaBytes / rounds ) + " bytes, " + ( deltaParseNanos / rounds / 1000 ) + "us parse" );
+			
+			// And a refresh where nothing changed
+			MatchListDeltaClient.Delta unchanged = client.fetch( etag, revisions );
+			System.out.println( "unchanged: " + ( unchanged.notModified ? "304" : unchanged.toString() ) );
+		}
+		finally {
+			stub.stop();
+		}
+	}
+	
+	/**
+	 * Plain HttpURLConnection to the stub. The app goes through
+	 * WebServiceAdapter instead.
+	 */
+	private static class HttpTransport implements MatchListDeltaClient.Transport {
+		private final String base;
+		
+		HttpTransport( String base ) {
+			this.base = base;
+		}
+		
+		@Override
+		public MatchListDeltaClient.Response post( String path, String etag, byte[] body ) throws IOException {
+			HttpURLConnection conn = (HttpURLConnection)new URL( base + path ).openConnection();
+			try {
+				conn.setRequestMethod( "POST" );
+				conn.setDoOutput( true );
+				conn.setFixedLengthStreamingMode( body.length );
+				conn.setRequestProperty( "Content-Type", "application/json" );
+				if( etag != null ) {
+					conn.setRequestProperty( "If-None-Match", etag );
+				}
+				
+				OutputStream out = conn.getOutputStream();
+				out.write( body );
+				out.close();
+				
+				int status = conn.getResponseCode();
+				byte[] payload = status == HttpURLConnection.HTTP_OK ? readAll( conn.getInputStream() ) : new byte[ 0 ];
+				return new MatchListDeltaClient.Response( status, payload );
+			}
+			finally {
+				conn.disconnect();
+			}
+		}
+	}
+	
+	private static byte[] get( String url ) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection)new URL( url ).openConnection();
+		try {
+			return readAll( conn.getInputStream() );
+		}
+		finally {
+			conn.disconnect();
+		}
+	}
+}